@@ -1,11 +1,22 @@
 import java.io.*;
 import java.net.*;
 import java.nio.*;
-import java.nio.charset.Charset;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.*;
 import org.apache.commons.codec.binary.Base16;
+import org.apache.commons.codec.binary.Base16OutputStream;
 import org.apache.commons.codec.binary.Base32;
+import org.apache.commons.codec.binary.Base32OutputStream;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
 
 //----------------------------------------------------------------------------
 /**
@@ -21,7 +32,7 @@ import org.apache.commons.codec.binary.Base64;
  * <p>
  * Run as script via Java 11: <br>
  * <code>
- * java -cp lib/commons-codec-1.15.jar ByteArray.java
+ * java -cp lib/commons-codec-1.15.jar ByteArray.java [--in format] [--out format] [--charset name] ... [input] [output file]
  * </code>
  */
 public final class ByteArray {
@@ -30,6 +41,9 @@ public final class ByteArray {
 	static final PrintStream stdout = System.out;
 	static final PrintStream stderr = System.err;
 
+	/** Bytes read at a time converting a file, the only memory it takes however large the file. */
+	static final int BLOCK = 1 << 16;
+
 	static Config config = null;
 	static class  Config {
 		String    strIn;
@@ -38,10 +52,96 @@ public final class ByteArray {
 		Format    fmtOut;
 		Path      pathOut;
 		Charset   csOut;
+		/** Hash algorithms, and whether each hashes on its own thread. */
+		List<String> hashes      = HashOutputStream.DEFAULTS;
+		boolean      hashThreads = false;
+		/** From command line arguments: print only the result. */
+		boolean      cli         = false;
+		/** Convert each line of the batch file, or of standard input if null. */
+		boolean      batch       = false;
+		Path         batchIn;
+
+		//--------------------------------------------------------------------
+		/** Get configuration from command line arguments, or else standard input. */
+		static Config getInstance (final String... args) throws IOException {
+			return args.length == 0 ? fromStdIn () : fromArgs (args);
+		}
+
+		//--------------------------------------------------------------------
+		private static Config die () {
+			stderr.println ("Command line arguments:");
+			stderr.println ("--in format --out format [--charset name] [--in-charset name] [--out-charset name]");
+			stderr.println ("[--hash algorithms (comma seperated)] [--hash-threads] [input] [output file]");
+			stderr.println ("--in format --out format ... --batch [input file]");
+			stderr.println ("Formats: hex (base16), base32, base64, c, escaped, file, hash, java, qp (quoted-printable), string, url");
+			System.exit (1);
+			return null;
+		}
+
+		//--------------------------------------------------------------------
+		/** Get configuration from command line arguments. */
+		private static Config fromArgs (final String... args) throws IOException {
+			var config = new Config ();
+			config.cli = true;
+			String option = null;
+
+			for (String arg1 : args) {
+				if (option != null) {
+					switch (option) {
+					case "in":          config.fmtIn  = Format.fromName (arg1);             break;
+					case "out":         config.fmtOut = Format.fromName (arg1);             break;
+					case "charset":     config.csIn   = config.csOut = Charset.forName (arg1); break;
+					case "in-charset":  config.csIn   = Charset.forName (arg1);             break;
+					case "out-charset": config.csOut  = Charset.forName (arg1);             break;
+					case "hash":        config.hashes = List.of (arg1.split ("\\s*,\\s*"));  break;
+					}
+					option = null;
+				} else if (arg1.equals ("--hash-threads")) {
+					config.hashThreads = true;
+				} else if (arg1.equals ("--batch")) {
+					config.batch = true;
+				} else if (List.of ("--in", "--out", "--charset", "--in-charset", "--out-charset", "--hash").contains (arg1)) {
+					option = arg1.substring (2);
+				} else if (config.strIn == null) {
+					config.strIn = arg1;
+				} else if (config.pathOut == null) {
+					config.pathOut = Paths.get (arg1);
+				} else {
+					return die ();
+				}
+			}
+			if (option != null || config.fmtIn == null || config.fmtOut == null ||
+			    (config.strIn == null && ! config.batch) || (config.batch && config.pathOut != null)) {
+				return die ();
+			}
+			if (config.fmtIn  == Format.HASH      || config.fmtIn  == Format.JAVA ||
+			    config.fmtOut == Format.C_ESCAPED || config.fmtOut == Format.ESCAPED) {
+				stderr.println ("Wrong choice.");
+				return die ();
+			}
+			if (config.batch && (config.fmtIn == Format.FILE || config.fmtOut == Format.FILE)) {
+				stderr.println ("Batch converts each line, not files.");
+				return die ();
+			}
+			if (config.fmtOut == Format.FILE && config.pathOut == null) {
+				stderr.println ("Output file required.");
+				return die ();
+			}
+			if (config.csIn == null) {
+				config.csIn = StandardCharsets.UTF_8;
+			}
+			if (config.csOut == null) {
+				config.csOut = StandardCharsets.UTF_8;
+			}
+			if (config.batch && config.strIn != null) {
+				config.batchIn = Paths.get (config.strIn);
+			}
+			return config;
+		}
 
 		//--------------------------------------------------------------------
 		/** Get configuration from standard input. */
-		static Config getInstance () throws IOException {
+		private static Config fromStdIn () throws IOException {
 			var config = new Config ();
 
 			// input
@@ -76,7 +176,7 @@ public final class ByteArray {
 				"\t3. Base32%n" +
 				"\t6. Base64%n" +
 				"\tF. File path%n" +
-				"\tH. Hash (CRC32, MD5, SHA-1, SHA-256, SHA3-256)%n" +
+				"\tH. Hash (CRC32, MD5, SHA-1, SHA-256, SHA3-256, or chosen)%n" +
 				"\tJ. Java expression (e.g. 0x48, 0x69)%n" +
 				"\tQ. Quoted-printable (e.g. =22Hi=22)%n" +
 				"\tS. String%n" +
@@ -86,6 +186,20 @@ public final class ByteArray {
 			if (config.fmtOut == Format.FILE) {
 				stdout.print ("Output file name: ");
 				config.pathOut = Paths.get (readStdinLine ());
+			} else if (config.isStreamed () && config.fmtOut != Format.HASH) {
+				stdout.print ("Output file name (empty for screen): ");
+				var name = readStdinLine ();
+				config.pathOut = name.isEmpty () ? null : Paths.get (name);
+			}
+			if (config.fmtOut == Format.HASH) {
+				stdout.printf ("Hash algorithms (comma seperated, e.g. CRC32C, SHA-512, empty for %s): ",
+					String.join (", ", HashOutputStream.DEFAULTS));
+				var names = readStdinLine ();
+				if (! names.isEmpty ()) {
+					config.hashes = List.of (names.split ("\\s*,\\s*"));
+				}
+				stdout.print ("Hash on a thread each (Y/N): ");
+				config.hashThreads = readStdinLine ().equalsIgnoreCase ("Y");
 			}
 			if (config.fmtOut == Format.QUOTED_PRINTABLE ||
 			    config.fmtOut == Format.STRING           ||
@@ -97,6 +211,16 @@ public final class ByteArray {
 			return config;
 		}
 
+		/** @return true if converting a file in blocks, not all in memory. */
+		boolean isStreamed () {
+			switch (fmtOut) {
+			case BASE16: case BASE32: case BASE64: case FILE: case HASH: case JAVA: case QUOTED_PRINTABLE: case URL_ENCODED:
+				return fmtIn == Format.FILE;
+			default:
+				return false;
+			}
+		}
+
 	}
 
 	//------------------------------------------------------------------------
@@ -119,100 +243,187 @@ public final class ByteArray {
 			default : throw new IOException ("Wrong choice.");
 			}
 		}
+
+		static Format fromName (final String name) throws IOException {
+			switch (name.toLowerCase ()) {
+			case "hex":
+			case "base16":           return Format.BASE16;
+			case "base32":           return Format.BASE32;
+			case "base64":           return Format.BASE64;
+			case "c":                return Format.C_ESCAPED;
+			case "escaped":          return Format.ESCAPED;
+			case "file":             return Format.FILE;
+			case "hash":             return Format.HASH;
+			case "java":             return Format.JAVA;
+			case "qp":
+			case "quoted-printable": return Format.QUOTED_PRINTABLE;
+			case "string":           return Format.STRING;
+			case "url":              return Format.URL_ENCODED;
+			default :                return fromChar (name);
+			}
+		}
 	}
 
 	//------------------------------------------------------------------------
 	/** Program entry */
 	public static void main (final String... args) {
 		try {
-			config = Config.getInstance ();
-			byte[] input = new byte[0];
-			switch (config.fmtIn) {
-			case BASE16:
-				input = decodeBase16 (config.strIn);
-				break;
-			case BASE32:
-				input = new Base32 ().decode (config.strIn);
-				break;
-			case BASE64:
-				input = new Base64 ().decode (config.strIn);
-				break;
-			case C_ESCAPED:
-				input = fromCEscaped (config.strIn, config.csIn);
-				break;
-			case ESCAPED:
-				input = fromJavaEscaped (config.strIn, config.csIn);
-				break;
-			case FILE:
-				input = Files.readAllBytes (Paths.get (config.strIn));
-				break;
-			case HASH:
-			case JAVA:
-				throw new IOException ("Wrong choice.");
-			case QUOTED_PRINTABLE:
-				input = URLDecoder.decode (config.strIn.replace ('=', '%'), config.csIn.name ()).getBytes (config.csIn);
-				break;
-			case STRING:
-				input = config.strIn.getBytes (config.csIn);
-				break;
-			case URL_ENCODED:
-				input = URLDecoder.decode (config.strIn, config.csIn.name ()).getBytes (config.csIn);
-				break;
-			}
-
-			String output = "";
-			switch (config.fmtOut) {
-			case BASE16:
-				output = new Base16 ().encodeToString (input);
-				break;
-			case BASE32:
-				output = new Base32 ().encodeToString (input);
-				break;
-			case BASE64:
-				output = new Base64 ().encodeToString (input);
-				break;
-			case C_ESCAPED:
-			case ESCAPED:
-				throw new IOException ("Wrong choice.");
-			case FILE:
-				Files.write (config.pathOut, input);
-				output = config.pathOut.toString ();
-				break;
-			case HASH:
-				output = toHash (input);
-				break;
-			case JAVA:
-				output = toJavaExpression (input);
-				break;
-			case QUOTED_PRINTABLE:
-				output = URLEncoder.encode (new String (input, config.csOut), config.csOut.name ()).replace ('%', '=');
-				break;
-			case STRING:
-				output = new String (input, config.csOut);
-				break;
-			case URL_ENCODED:
-				output = URLEncoder.encode (new String (input, config.csOut), config.csOut.name ());
-				break;
-			}
-
-			stdout.printf ("Result (%d bytes):%n%s%n", input.length, output);
-
-		} catch (IOException e) {
+			config = Config.getInstance (args);
+			if (config.batch) {
+				convertLines ();
+				return;
+			}
+			if (config.isStreamed ()) {
+				convertFile (Paths.get (config.strIn));
+				return;
+			}
+
+			byte[] input  = decode (config.strIn);
+			String output = encode (input);
+			if (config.cli) {
+				stdout.println (output);
+			} else {
+				stdout.printf ("Result (%d bytes):%n%s%n", input.length, output);
+			}
+
+		} catch (IOException | IllegalArgumentException e) {
 			stderr.println (e.getMessage ());
 		}
 	}
 
+	//------------------------------------------------------------------------
+	/** @return bytes of the input in the input format. */
+	private static byte[] decode (final String strIn) throws IOException {
+		byte[] input = new byte[0];
+		switch (config.fmtIn) {
+		case BASE16:
+			input = decodeBase16 (strIn);
+			break;
+		case BASE32:
+			input = base32.decode (strIn);
+			break;
+		case BASE64:
+			input = decodeBase64 (strIn);
+			break;
+		case C_ESCAPED:
+			input = fromCEscaped (strIn, config.csIn);
+			break;
+		case ESCAPED:
+			input = fromJavaEscaped (strIn, config.csIn);
+			break;
+		case FILE:
+			input = Files.readAllBytes (Paths.get (strIn));
+			break;
+		case HASH:
+		case JAVA:
+			throw new IOException ("Wrong choice.");
+		case QUOTED_PRINTABLE:
+			input = URLDecoder.decode (strIn.replace ('=', '%'), config.csIn).getBytes (config.csIn);
+			break;
+		case STRING:
+			input = strIn.getBytes (config.csIn);
+			break;
+		case URL_ENCODED:
+			input = URLDecoder.decode (strIn, config.csIn).getBytes (config.csIn);
+			break;
+		}
+		return input;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return the bytes in the output format. */
+	private static String encode (final byte[] input) throws IOException {
+		String output = "";
+		switch (config.fmtOut) {
+		case BASE16:
+			output = encodeBase16 (input);
+			break;
+		case BASE32:
+			output = base32.encodeToString (input);
+			break;
+		case BASE64:
+			output = encodeBase64 (input);
+			break;
+		case C_ESCAPED:
+		case ESCAPED:
+			throw new IOException ("Wrong choice.");
+		case FILE:
+			Files.write (config.pathOut, input);
+			output = config.pathOut.toString ();
+			break;
+		case HASH:
+			output = toHash (input);
+			break;
+		case JAVA:
+			output = toJavaExpression (input);
+			break;
+		case QUOTED_PRINTABLE:
+			output = URLEncoder.encode (new String (input, config.csOut), config.csOut).replace ('%', '=');
+			break;
+		case STRING:
+			output = new String (input, config.csOut);
+			break;
+		case URL_ENCODED:
+			output = URLEncoder.encode (new String (input, config.csOut), config.csOut);
+			break;
+		}
+		return output;
+	}
+
 	//------------------------------------------------------------------------
 	private static String readStdinLine () throws IOException {
 		return stdin.readLine ().trim ();
 	}
 
 	//------------------------------------------------------------------------
+	/**
+	 * Codecs for all conversions.
+	 * Commons Codec takes an 8K buffer for each value, so Base16 and Base64 are done by hand or by Java,
+	 * falling back to Commons Codec for input not strictly valid, to decode it the same.
+	 */
 	private static Base16 base16 = new Base16 ();
+	private static Base32 base32 = new Base32 ();
+	private static Base64 base64 = new Base64 ();
+	private static final java.util.Base64.Encoder base64encoder = java.util.Base64.getEncoder ();
+	private static final java.util.Base64.Decoder base64decoder = java.util.Base64.getDecoder ();
+	static final byte[] HEX = "0123456789ABCDEF".getBytes (StandardCharsets.US_ASCII);
+
+	private static String encodeBase16 (final byte[] input) {
+		var text = new byte [input.length * 2];
+		for (int i = 0, t = 0 ; i < input.length ; i++) {
+			text[t++] = HEX[(input[i] >> 4) & 0xF];
+			text[t++] = HEX[input[i] & 0xF];
+		}
+		return new String (text, StandardCharsets.ISO_8859_1);
+	}
 	private static byte[] decodeBase16 (final String input) {
+		if (input.length () % 2 == 0) {
+			var bytes = new byte [input.length () / 2];
+			for (int i = 0 ; i < bytes.length ; i++) {
+				int high = Character.digit (input.charAt (i * 2), 16), low = Character.digit (input.charAt (i * 2 + 1), 16);
+				if (high < 0 || low < 0 || input.charAt (i * 2) > 'f' || input.charAt (i * 2 + 1) > 'f') {
+					return decodeBase16Strictly (input);
+				}
+				bytes[i] = (byte) (high << 4 | low);
+			}
+			return bytes;
+		}
+		return decodeBase16Strictly (input);
+	}
+	private static byte[] decodeBase16Strictly (final String input) {
 		// toUpperCase to avoid IllegalArgumentException: Invalid octet
 		return base16.decode (input.toUpperCase ());
 	}
+	private static String encodeBase64 (final byte[] input) {
+		return base64encoder.encodeToString (input);
+	}
+	private static byte[] decodeBase64 (final String input) {
+		try {
+			return base64decoder.decode (input);
+		} catch (IllegalArgumentException e) {
+			return base64.decode (input);
+		}
+	}
 	private static byte[] decodeBase16 (final StringBuilder input) {
 		return decodeBase16 (input.toString ());
 	}
@@ -347,48 +558,20 @@ public final class ByteArray {
 	}
 
 	//------------------------------------------------------------------------
-	private static String toHash (final byte[] input) {
-		try {
-			var crc32enc = new java.util.zip.CRC32 ();
-			crc32enc.update (input);
-			long crc32long = crc32enc.getValue ();
-			String crc32str = String.format ("%08X", crc32long);
-
-			var md5enc = java.security.MessageDigest.getInstance ("MD5");
-			md5enc.update (input);
-			byte[] md5b = md5enc.digest();
-			String md5str = new Base16 ().encodeToString (md5b);
-
-			var sha1enc = java.security.MessageDigest.getInstance ("SHA-1");
-			sha1enc.update (input);
-			byte[] sha1b = sha1enc.digest();
-			String sha1str = new Base16 ().encodeToString (sha1b);
-
-			var sha256enc = java.security.MessageDigest.getInstance ("SHA-256");
-			sha256enc.update (input);
-			byte[] sha256b = sha256enc.digest();
-			String sha256str = new Base16 ().encodeToString (sha256b);
-
-			var sha3enc = java.security.MessageDigest.getInstance ("SHA3-256");
-			sha3enc.update (input);
-			byte[] sha3b = sha3enc.digest();
-			String sha3str = new Base16 ().encodeToString (sha3b);
-
-			return String.format (
-				"CRC32    = %s%n" +
-				"MD5      = %s%n" +
-				"SHA-1    = %s%n" +
-				"SHA-256  = %s%n" +
-				"SHA3-256 = %s",
-				crc32str, md5str, sha1str, sha256str, sha3str);
-		} catch (java.security.NoSuchAlgorithmException e) {
-			return e.getMessage ();
+	/** The same hash for each input, results all on a line for each line in batch. */
+	private static HashOutputStream hash = null;
+	private static String toHash (final byte[] input) throws IOException {
+		if (hash == null) {
+			hash = new HashOutputStream (config.hashes, false);
 		}
+		hash.write (input);
+		var results = hash.results ();
+		return config.batch ? String.join ("\t", results) : hash.format (results);
 	}
 
 	//------------------------------------------------------------------------
 	private static String toJavaExpression (final byte[] input) {
-		var s16 = new Base16 ().encodeToString (input);
+		var s16 = encodeBase16 (input);
 		var sb = new StringBuilder ();
 		for (int i = 0 ; i < s16.length () ; ) {
 			sb.append ("0x")
@@ -402,4 +585,441 @@ public final class ByteArray {
 		return sb.toString ();
 	}
 
+	//------------------------------------------------------------------------
+	/**
+	 * Convert the input file block by block, to the output file or the screen,
+	 * in the same format as converted all in memory.
+	 */
+	private static void convertFile (final Path in) throws IOException {
+		long size  = Files.size (in);
+		long start = System.nanoTime ();
+		if (config.pathOut == null && config.fmtOut != Format.HASH && ! config.cli) {
+			stdout.printf ("Result (%d bytes):%n", size);
+		}
+		var output = openOutput ();
+		try (output ; var input = Files.newInputStream (in)) {
+			var block = new byte [BLOCK];
+			for (int n ; (n = input.read (block)) >= 0 ; ) {
+				output.write (block, 0, n);
+			}
+		}
+		String result = null;
+		if (output instanceof HashOutputStream) {
+			var hash = (HashOutputStream) output;
+			result = hash.format (hash.results ());
+		}
+
+		double seconds = (System.nanoTime () - start) / 1e9;
+		if (config.cli) {
+			// only the result on standard output
+			if (result != null || config.pathOut == null) {
+				stdout.println (result != null ? result : "");
+			}
+			stderr.printf ("%.3f s, %.1f MB/s%n", seconds, size / seconds / (1 << 20));
+			return;
+		}
+		if (result != null) {
+			stdout.printf ("Result (%d bytes):%n%s%n", size, result);
+		} else if (config.pathOut != null) {
+			stdout.printf ("Result (%d bytes):%n%s%n", size, config.pathOut);
+		} else {
+			stdout.println ();
+		}
+		stdout.printf ("%.3f s, %.1f MB/s%n", seconds, size / seconds / (1 << 20));
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Convert each line of the batch file or standard input to a line of output, by the same codecs.
+	 * A line failed to convert is reported and left empty, for the output to keep the lines of the input.
+	 */
+	private static void convertLines () throws IOException {
+		var out = new BufferedWriter (new OutputStreamWriter (stdout), BLOCK);
+		try (var in = config.batchIn != null ? Files.newBufferedReader (config.batchIn, config.csIn) :
+			new BufferedReader (new InputStreamReader (System.in, config.csIn))) {
+			int number = 0;
+			for (String line ; (line = in.readLine ()) != null ; ) {
+				number++;
+				try {
+					out.write (encode (decode (line)));
+				} catch (IllegalArgumentException | IOException e) {
+					stderr.printf ("Line %d: %s%n", number, e.getMessage ());
+				}
+				out.newLine ();
+			}
+		}
+		out.flush ();
+	}
+
+	//------------------------------------------------------------------------
+	/** @return stream converting bytes written to the output file or the screen, or hashing them. */
+	private static OutputStream openOutput () throws IOException {
+		if (config.fmtOut == Format.HASH) {
+			return new HashOutputStream (config.hashes, config.hashThreads);
+		}
+		var sink = config.pathOut != null ? Files.newOutputStream (config.pathOut) : new ScreenOutputStream ();
+		switch (config.fmtOut) {
+		case BASE16:           return new Base16OutputStream (sink, true);
+		case BASE32:           return new Base32OutputStream (sink, true, 0, null);
+		case BASE64:           return new Base64OutputStream (sink, true, 0, null);
+		case FILE:             return sink;
+		case JAVA:             return new JavaOutputStream (sink);
+		case QUOTED_PRINTABLE: return new UrlOutputStream (sink, config.csOut, true);
+		case URL_ENCODED:      return new UrlOutputStream (sink, config.csOut, false);
+		default:
+			sink.close ();
+			throw new IOException ("Wrong choice.");
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** The screen as an output stream, left open at the end of a conversion. */
+	static final class ScreenOutputStream extends OutputStream {
+		@Override public void write (final int b) {
+			stdout.write (b);
+		}
+
+		@Override public void write (final byte[] b, final int off, final int len) {
+			stdout.write (b, off, len);
+		}
+
+		@Override public void close () {
+			stdout.flush ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Hashes of all bytes written, by each algorithm in one pass.
+	 * On a thread each, the writer hands off blocks to all threads,
+	 * a few blocks at most shared by them and free again once hashed by all,
+	 * so hashing takes about as long as the slowest algorithm alone.
+	 * A thread failing keeps freeing its blocks, for the writer not to wait, and its failure is thrown to the writer.
+	 */
+	static final class HashOutputStream extends OutputStream {
+		static final List<String> DEFAULTS = List.of ("CRC32", "MD5", "SHA-1", "SHA-256", "SHA3-256");
+		/** Blocks handed off to threads at most. */
+		static final int          BLOCKS   = 8;
+		/** End of the blocks handed off. */
+		static final Block        END      = new Block (0);
+
+		final Algorithm[]                 algorithms;
+		/** Free blocks, and blocks handed off to each thread, or null for hashing on the writer's thread. */
+		final BlockingQueue<Block>        free;
+		final List<BlockingQueue<Block>>  queues  = new ArrayList<> ();
+		final List<Thread>                threads = new ArrayList<> ();
+		/** First failure of the threads, thrown by the writer. */
+		final AtomicReference<IOException> failure = new AtomicReference<> ();
+
+		HashOutputStream (final List<String> names, final boolean threaded) throws IOException {
+			algorithms = new Algorithm [names.size ()];
+			for (int i = 0 ; i < algorithms.length ; i++) {
+				algorithms[i] = new Algorithm (names.get (i));
+			}
+			if (! threaded || algorithms.length < 2) {
+				free = null;
+				return;
+			}
+
+			free = new ArrayBlockingQueue<> (BLOCKS);
+			for (int i = 0 ; i < BLOCKS ; i++) {
+				free.add (new Block (BLOCK));
+			}
+			for (var algorithm : algorithms) {
+				var queue  = new ArrayBlockingQueue<Block> (BLOCKS + 1);
+				var thread = new Thread (() -> hash (algorithm, queue), algorithm.name);
+				thread.setDaemon (true);
+				thread.start ();
+				queues.add (queue);
+				threads.add (thread);
+			}
+		}
+
+		private void hash (final Algorithm algorithm, final BlockingQueue<Block> queue) {
+			try {
+				boolean failed = false;
+				for (Block block ; (block = queue.take ()) != END ; ) {
+					try {
+						if (! failed) {
+							algorithm.update (block.bytes, 0, block.length);
+						}
+					} catch (RuntimeException | Error e) {
+						failed = true;
+						failure.compareAndSet (null, new IOException (String.format ("%s failed: %s", algorithm.name, e), e));
+					}
+					if (block.pending.decrementAndGet () == 0) {
+						free.add (block);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread ().interrupt ();
+			}
+		}
+
+		@Override public void write (final int b) throws IOException {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override public void write (final byte[] b, int off, int len) throws IOException {
+			if (free == null) {
+				for (var algorithm : algorithms) {
+					algorithm.update (b, off, len);
+				}
+				return;
+			}
+			try {
+				while (len > 0) {
+					throwFailure ();
+					var block = free.take ();
+					block.length = Math.min (len, BLOCK);
+					System.arraycopy (b, off, block.bytes, 0, block.length);
+					block.pending.set (queues.size ());
+					for (var queue : queues) {
+						queue.put (block);
+					}
+					off += block.length;
+					len -= block.length;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			}
+		}
+
+		@Override public void close () throws IOException {
+			try {
+				for (var queue : queues) {
+					queue.put (END);
+				}
+				for (var thread : threads) {
+					thread.join ();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			} finally {
+				queues.clear ();
+				threads.clear ();
+			}
+			throwFailure ();
+		}
+
+		private void throwFailure () throws IOException {
+			var e = failure.get ();
+			if (e != null) {
+				// anew each time, as thrown by both write and close
+				throw new IOException (e.getMessage (), e.getCause ());
+			}
+		}
+
+		/**
+		 * @return hash by each algorithm of all bytes written, once closed.
+		 * Call once for the bytes written: each algorithm starts hashing anew.
+		 */
+		List<String> results () {
+			var results = new ArrayList<String> (algorithms.length);
+			for (var algorithm : algorithms) {
+				results.add (algorithm.result ());
+			}
+			return results;
+		}
+
+		/** @return each algorithm and its hash in the results, a line each. */
+		String format (final List<String> results) {
+			int width = 8;
+			for (var algorithm : algorithms) {
+				width = Math.max (width, algorithm.name.length ());
+			}
+			var s = new StringJoiner (String.format ("%n"));
+			for (int i = 0 ; i < algorithms.length ; i++) {
+				s.add (String.format ("%-" + width + "s = %s", algorithms[i].name, results.get (i)));
+			}
+			return s.toString ();
+		}
+
+		//--------------------------------------------------------------------
+		/** Bytes written, hashed by the threads still pending. */
+		static final class Block {
+			final byte[]        bytes;
+			int                 length;
+			final AtomicInteger pending = new AtomicInteger ();
+
+			Block (final int size) {
+				bytes = new byte [size];
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * Checksum CRC32, CRC32C or Adler32,
+		 * or message digest of any security provider, e.g. MD5, SHA-512, SHA3-256, BLAKE2B-512 if provided.
+		 */
+		static final class Algorithm {
+			final String        name;
+			final Checksum      checksum;
+			final MessageDigest digest;
+
+			Algorithm (final String name) throws IOException {
+				this.name = name.toUpperCase ();
+				switch (this.name) {
+				case "CRC32":   checksum = new CRC32 ();   break;
+				case "CRC32C":  checksum = new CRC32C ();  break;
+				case "ADLER32": checksum = new Adler32 (); break;
+				default:        checksum = null;           break;
+				}
+				try {
+					digest = checksum == null ? MessageDigest.getInstance (this.name) : null;
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException (String.format ("Unknown hash algorithm %s, not any of CRC32, CRC32C, ADLER32, %s",
+						name, String.join (", ", new TreeSet<> (Security.getAlgorithms ("MessageDigest")))));
+				}
+			}
+
+			void update (final byte[] b, final int off, final int len) {
+				if (checksum != null) {
+					checksum.update (b, off, len);
+				} else {
+					digest.update (b, off, len);
+				}
+			}
+
+			/** @return hash of the bytes so far, then start anew. */
+			String result () {
+				if (digest != null) {
+					return encodeBase16 (digest.digest ());
+				}
+				var value = ByteBuffer.allocate (Integer.BYTES).putInt ((int) checksum.getValue ()).array ();
+				checksum.reset ();
+				return encodeBase16 (value);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Java expression of the bytes written, e.g. 0x48, 0x69. */
+	static final class JavaOutputStream extends FilterOutputStream {
+		final byte[] text  = new byte [BLOCK * 6];
+		boolean      first = true;
+
+		JavaOutputStream (final OutputStream out) {
+			super (out);
+		}
+
+		@Override public void write (final int b) throws IOException {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override public void write (final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min (len, BLOCK), t = 0;
+				for (int i = off ; i < off + n ; i++) {
+					if (! first) {
+						text[t++] = ',';
+						text[t++] = ' ';
+					}
+					first = false;
+					text[t++] = '0';
+					text[t++] = 'x';
+					text[t++] = HEX[(b[i] >> 4) & 0xF];
+					text[t++] = HEX[b[i] & 0xF];
+				}
+				out.write (text, 0, t);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * URL encoded, or quoted-printable, string of the bytes written as text in the character set.
+	 * Text is decoded a block at a time, keeping bytes and characters split between blocks for the next.
+	 */
+	static final class UrlOutputStream extends FilterOutputStream {
+		final Charset        charset;
+		final boolean        quoted;
+		final CharsetDecoder decoder;
+		final ByteBuffer     bytes = ByteBuffer.allocate (BLOCK);
+		final CharBuffer     chars = CharBuffer.allocate (BLOCK);
+		/** Byte order mark the character set begins the bytes of each run with, escaped, such as %FE%FF in UTF-16. */
+		final String         mark;
+		/** True if the last block ended in a run of characters to escape, too long to keep. */
+		boolean              split = false;
+
+		UrlOutputStream (final OutputStream out, final Charset charset, final boolean quoted) {
+			super (out);
+			this.charset = charset;
+			this.quoted  = quoted;
+			decoder = charset.newDecoder ()
+				.onMalformedInput (CodingErrorAction.REPLACE)
+				.onUnmappableCharacter (CodingErrorAction.REPLACE);
+			var one = URLEncoder.encode ("~", charset);
+			mark = one.substring (0, one.length () * 2 - URLEncoder.encode ("~~", charset).length ());
+		}
+
+		@Override public void write (final int b) throws IOException {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override public void write (final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min (len, bytes.remaining ());
+				bytes.put (b, off, n);
+				off += n;
+				len -= n;
+				decode (false);
+			}
+		}
+
+		@Override public void close () throws IOException {
+			decode (true);
+			super.close ();
+		}
+
+		private void decode (final boolean end) throws IOException {
+			bytes.flip ();
+			CoderResult result;
+			do {
+				result = decoder.decode (bytes, chars, end);
+				if (end && result.isUnderflow ()) {
+					decoder.flush (chars);
+				}
+				encode (end && result.isUnderflow ());
+			} while (result.isOverflow ());
+			bytes.compact ();
+		}
+
+		private void encode (final boolean end) throws IOException {
+			chars.flip ();
+			// the last run of characters to escape is kept whole for the next block,
+			// as its bytes may begin with a byte order mark, unless it fills the block
+			int n = chars.remaining ();
+			if (! end) {
+				int kept = n;
+				while (kept > 0 && ! isPlain (chars.get (chars.position () + kept - 1))) {
+					kept--;
+				}
+				if (kept > 0 || n < chars.capacity ()) {
+					n = kept;
+				} else if (Character.isHighSurrogate (chars.get (chars.limit () - 1))) {
+					n--;
+				}
+			}
+			var s = URLEncoder.encode (new String (chars.array (), chars.position (), n), charset);
+			if (n > 0) {
+				if (split && ! isPlain (chars.get (chars.position ()))) {
+					s = s.substring (mark.length ());
+				}
+				split = ! end && ! isPlain (chars.get (chars.position () + n - 1));
+			}
+			out.write ((quoted ? s.replace ('%', '=') : s).getBytes (StandardCharsets.US_ASCII));
+			chars.position (chars.position () + n);
+			chars.compact ();
+		}
+
+		/** @return true if URL encoded as itself, or space as +. */
+		private static boolean isPlain (final char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+			       c == ' ' || c == '-' || c == '_' || c == '.' || c == '*';
+		}
+	}
+
 }
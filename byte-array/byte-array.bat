@@ -6,6 +6,10 @@ if defined JAVA_HOME (
 ) else (
 	set JAVA=java
 )
+if not "%~1"=="" (
+	%JAVA% -cp lib\commons-codec-1.15.jar ByteArray.java %*
+	exit /b
+)
 :forever
 %JAVA% -cp lib\commons-codec-1.15.jar ByteArray.java %*
 echo;
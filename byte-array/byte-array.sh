@@ -1 +1 @@
-java -cp lib/commons-codec-1.15.jar ByteArray.java $*
+java -cp lib/commons-codec-1.15.jar ByteArray.java "$@"
@@ -1,11 +1,15 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.*;
+import java.security.*;
 import java.util.*;
-import java.util.concurrent.atomic.*;
-
-import org.apache.commons.io.IOCase;
-import org.apache.commons.io.filefilter.WildcardFileFilter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 //----------------------------------------------------------------------------
 /**
@@ -18,23 +22,34 @@ import org.apache.commons.io.filefilter.WildcardFileFilter;
  * <p>
  * Run as script via Java 11: <br>
  * <code>
- * java -cp lib/commons-io-2.6.jar Compare2Folders.java
+ * java Compare2Folders.java
  * </code>
  */
 public final class Compare2Folders {
 
 	static final int KB = 1024;
+	static final int MB = KB * KB;
 	static final int PARTIAL_COMPARE_SIZE = 4 * KB;
+	/** Size of each pooled direct buffer used to compare small files. */
+	static final int  BLOCK_SIZE     = 1 * MB;
+	/** Files at least this large are compared through memory mapped regions. */
+	static final long MAP_THRESHOLD  = 64L * MB;
+	/** Size of each memory mapped region. */
+	static final long MAP_REGION     = 256L * MB;
 	
 	static final BufferedReader stdin = new BufferedReader (new InputStreamReader (System.in));
 	static final PrintStream stdout = System.out;
 	static final PrintStream stderr = System.err;
 	static final String HR = "--------";
+	/** Differences and summary, written through a large buffer instead of flushing each line. */
+	static final PrintWriter out = new PrintWriter (new BufferedWriter (
+		new OutputStreamWriter (new FileOutputStream (FileDescriptor.out)), MB));
 	
 	//------------------------------------------------------------------------
 	static enum CompareLevel {
 		SIZE,
 		PARTIAL,
+		SAMPLE,
 		FULL;
 		
 		static CompareLevel valueOf (final char c) {
@@ -52,34 +67,103 @@ public final class Compare2Folders {
 	static class  Config {
 		Path            whereA;
 		Path            whereB;
+		/** 3 or more replicas to compare all together, or null. */
+		List<Path>      replicas        = null;
 		CompareLevel    levelCompare    = CompareLevel.SIZE;
-		List<String>    exclude         = List.of ();
+		List<String>    exclude         = new ArrayList<> ();
+		Exclusion       exclusion;
+		int             threads         = 1;
+		boolean         cache           = false;
+		Path            cacheDir        = null;
+		boolean         cacheVerify     = false;
+		String          hash            = null;
+		int             samples         = 16;
+		int             sampleSize      = PARTIAL_COMPARE_SIZE;
+		Long            sampleSeed      = null;
+		boolean         detectMoves     = false;
+		OutputFormat    format          = OutputFormat.TEXT;
+		/** Saved manifest to compare A with, instead of path B. */
+		Path            manifest        = null;
+		/** Manifest of A to write, instead of comparing. */
+		Path            writeManifest   = null;
+		/** Show a progress line on standard error, by default if on a console. */
+		boolean         progress        = System.console () != null;
+
+		/** @return algorithm to digest file content. */
+		String algorithm () {
+			return hash != null ? hash : "SHA-256";
+		}
 
 		//--------------------------------------------------------------------
 		@Override public String toString () {
-			var s = String.format ("Comparing (A) %s and (B) %s with %s compare excluding %s...",
-				config.whereA, config.whereB, config.levelCompare, config.exclude);
+			if (config.writeManifest != null) {
+				return String.format ("Writing manifest of %s to %s%s excluding %s...", config.whereA, config.writeManifest,
+					config.levelCompare == CompareLevel.FULL ? " with " + config.algorithm () + " digests" : "", excludes ());
+			}
+			String s;
+			if (config.replicas != null) {
+				var replicas = new StringJoiner (", ");
+				for (int i = 0 ; i < config.replicas.size () ; i++) {
+					replicas.add ("(" + Replicas.label (i) + ") " + config.replicas.get (i));
+				}
+				s = String.format ("Comparing %d replicas %s with %s compare excluding %s...",
+					config.replicas.size (), replicas, config.levelCompare, excludes ());
+			} else {
+				s = String.format ("Comparing (A) %s and (B) %s with %s compare excluding %s...",
+					config.whereA, config.manifest != null ? "manifest " + config.manifest : config.whereB,
+					config.levelCompare, excludes ());
+			}
 			if (config.levelCompare == CompareLevel.PARTIAL) {
 				s += String.format (" (partial compare size = %,d)", PARTIAL_COMPARE_SIZE);
 			}
+			if (config.levelCompare == CompareLevel.SAMPLE) {
+				s += String.format (" (head, tail and %d %s blocks of %,d bytes)", config.samples,
+					config.sampleSeed != null ? "random" : "evenly spaced", config.sampleSize);
+			}
+			if (config.threads > 1) {
+				s += String.format (" (threads = %d)", config.threads);
+			}
+			if (config.hash != null) {
+				s += String.format (" (hash = %s)", config.hash);
+			}
+			if (config.detectMoves) {
+				s += " (detect moves)";
+			}
+			if (config.cache) {
+				s += String.format (" (digest cache in %s%s)",
+					config.cacheDir != null ? config.cacheDir : "each folder", config.cacheVerify ? ", verify" : "");
+			}
 			return s;
 		}
 
+		/** @return the wildcards, or their number if too many to show. */
+		private String excludes () {
+			return exclude.size () > 10 ? exclude.size () + " wildcards" : exclude.toString ();
+		}
+
 		//--------------------------------------------------------------------
 		static Config getInstance (final String... args) throws IOException {
+			Config config;
 			if (args.length == 0) {
-				return fromStdIn ();
+				config = fromStdIn ();
 			} else if (args.length >= 2) {
-				return fromArgs (args);
+				config = fromArgs (args);
 			} else {
 				return die ();
 			}
+			config.exclusion = new Exclusion (config.exclude);
+			return config;
 		}
 
 		//--------------------------------------------------------------------
 		private static Config die () {
 			stderr.println ("Command line arguments:");
-			stderr.println ("[path A] [path B] [-partial | -full] [-exclude wildcards (comma seperated)]");
+			stderr.println ("[path A] [path B | -manifest file] [-partial | -full] [-exclude wildcards (comma seperated)] [-threads N]");
+			stderr.println ("[path A] -write-manifest file [-full | -hash algorithm] [-exclude wildcards (comma seperated)]");
+			stderr.println ("[path A] [path B] [path C] ... [-partial | -sample N | -full | -hash algorithm] to compare 3 or more replicas");
+			stderr.println ("[-sample N] [-sample-size bytes] [-sample-seed N] [-detect-moves]");
+			stderr.println ("[-exclude-from file (a wildcard per line)] [-format jsonl | csv | tsv] [-progress | -no-progress]");
+			stderr.println ("[-hash XXH64 | CRC32C | SHA-256 | ...] [-cache] [-cache-dir folder] [-cache-verify]");
 			System.exit (1);
 			return null;
 		}
@@ -88,28 +172,122 @@ public final class Compare2Folders {
 		/** Get configuration from command line arguments. */
 		private static Config fromArgs (final String... args) {
 			var config = new Config ();
-			int where = 0;
+			String option = null;
 			
 			for (String arg1 : args) {
-				if (isContains (arg1, "-partial", "--partial")) {
+				if (option != null) {
+					switch (option) {
+					case "exclude":   config.exclude.addAll (List.of (arg1.split (","))); break;
+					case "threads":   config.threads  = parseThreads (arg1);         break;
+					case "cache-dir": config.cacheDir = Path.of (arg1);              break;
+					case "hash":      config.hash     = arg1;                        break;
+					case "manifest":       config.manifest      = Path.of (arg1);    break;
+					case "write-manifest": config.writeManifest = Path.of (arg1);    break;
+					case "exclude-from":
+						try {
+							for (String line : Files.readAllLines (Path.of (arg1))) {
+								if (! line.isBlank () && ! line.startsWith ("#")) {
+									config.exclude.add (line.trim ());
+								}
+							}
+						} catch (IOException e) {
+							stderr.printf ("Cannot read %s: %s%n", arg1, e);
+							return die ();
+						}
+						break;
+					case "format":
+						try {
+							config.format = OutputFormat.valueOf (arg1.toUpperCase ());
+						} catch (IllegalArgumentException e) {
+							stderr.printf ("Unknown format %s%n", arg1);
+							return die ();
+						}
+						break;
+					case "sample":
+						config.levelCompare = CompareLevel.SAMPLE;
+						config.samples      = (int) Math.max (0, parseNumber (arg1, config.samples));
+						break;
+					case "sample-size":
+						config.sampleSize   = (int) Math.max (1, Math.min (BLOCK_SIZE, parseNumber (arg1, config.sampleSize)));
+						break;
+					case "sample-seed":
+						config.sampleSeed   = parseNumber (arg1, 0);
+						break;
+					}
+					option = null;
+				} else if (isContains (arg1, "-cache", "--cache")) {
+					config.cache = true;
+				} else if (isContains (arg1, "-cache-verify", "--cache-verify")) {
+					config.cache = config.cacheVerify = true;
+				} else if (isContains (arg1, "-detect-moves", "--detect-moves")) {
+					config.detectMoves = true;
+				} else if (isContains (arg1, "-progress", "--progress")) {
+					config.progress = true;
+				} else if (isContains (arg1, "-no-progress", "--no-progress")) {
+					config.progress = false;
+				} else if (isContains (arg1, "-partial", "--partial")) {
 					config.levelCompare = CompareLevel.PARTIAL;
 				} else if (isContains (arg1, "-full", "--full")) {
 					config.levelCompare = CompareLevel.FULL;
-				} else if (isContains (arg1, "-exclude", "--exclude")) {
-					where = -1;
-				} else if (where == -1) {
-					config.exclude = List.of (arg1.split (","));
-				} else if (where == 0) {
-					where = 1;
+				} else if (isContains (arg1, "-exclude", "--exclude", "-exclude-from", "--exclude-from", "-threads", "--threads", "-cache-dir", "--cache-dir", "-hash", "--hash", "-format", "--format",
+				                              "-manifest", "--manifest", "-write-manifest", "--write-manifest",
+				                              "-sample", "--sample", "-sample-size", "--sample-size", "-sample-seed", "--sample-seed")) {
+					option = arg1.replaceFirst ("^-+", "").toLowerCase ();
+				} else if (config.whereA == null) {
 					config.whereA = Path.of (arg1);
-				} else {
+				} else if (config.whereB == null) {
 					config.whereB = Path.of (arg1);
+				} else {
+					if (config.replicas == null) {
+						config.replicas = new ArrayList<> (List.of (config.whereA, config.whereB));
+					}
+					config.replicas.add (Path.of (arg1));
+				}
+			}
+			if (config.whereA == null || config.whereB == null && config.manifest == null && config.writeManifest == null) {
+				return die ();
+			}
+			if (config.cacheDir != null) {
+				config.cache = true;
+			}
+			if (config.cache || config.hash != null) {
+				// digests stand for full content
+				config.levelCompare = CompareLevel.FULL;
+			}
+			if (config.hash != null) {
+				try {
+					Hasher.of (config.hash);
+				} catch (IllegalArgumentException e) {
+					stderr.println (e.getMessage ());
+					return die ();
 				}
 			}
 			
 			return config;
 		}
 
+		//--------------------------------------------------------------------
+		/** @return number of threads, 0 stands for all processors. */
+		private static int parseThreads (final String arg) {
+			try {
+				int n = Integer.parseInt (arg);
+				return n > 0 ? n : Runtime.getRuntime ().availableProcessors ();
+			} catch (NumberFormatException e) {
+				stderr.println ("Argument threads should be a number.");
+				return 1;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		private static long parseNumber (final String arg, final long defaultNumber) {
+			try {
+				return Long.parseLong (arg);
+			} catch (NumberFormatException e) {
+				stderr.printf ("Argument %s should be a number.%n", arg);
+				return defaultNumber;
+			}
+		}
+
 		//--------------------------------------------------------------------
 		private static boolean isContains (final String content, final String... what) {
 			for (String what1 : what) {
@@ -133,7 +311,7 @@ public final class Compare2Folders {
 			line = stdinLine ("S", "Size only / Partial / Full file hash (S/P/F, default to S): ");
 			config.levelCompare = CompareLevel.valueOf (line.charAt (0));
 			line = stdinLine ("",  "Exclude file name wildcards (comma seperated, default to empty): ");
-			config.exclude = List.of (line.split (","));
+			config.exclude.addAll (List.of (line.split (",")));
 
 			return config;
 		}
@@ -154,142 +332,2036 @@ public final class Compare2Folders {
 	public static void main (final String... args) {
 		try {
 			config = Config.getInstance (args);
-			stdout.println (config.toString ());
-			stdout.println (HR);
+			// machine readable formats keep standard output for records only
+			var info = config.format == OutputFormat.TEXT ? out : new PrintWriter (stderr, true);
+			info.println (config.toString ());
+			info.println (HR);
 
-			stdout.println ("Path\tA\tB");
-			long count = walkFolderTree (config.whereA, config.whereB, TurnAB.AB)
-			           + walkFolderTree (config.whereB, config.whereA, TurnAB.BA);
+			String header = config.replicas != null ? Replicas.header (config.format) : config.format.header ();
+			if (header != null && config.writeManifest == null) {
+				out.println (header);
+			}
+			var progress = config.progress ? new Progress () : null;
+			if (progress != null && config.levelCompare == CompareLevel.FULL && config.writeManifest == null) {
+				progress.sum (config.replicas != null ? config.replicas.toArray (new Path[0])
+					: config.manifest != null ? new Path[] { config.whereA } : new Path[] { config.whereA, config.whereB });
+			}
+			var flusher = Executors.newSingleThreadScheduledExecutor (daemon ("flusher"));
+			flusher.scheduleWithFixedDelay (progress != null ? progress : out::flush, 1, 1, TimeUnit.SECONDS);
+			long start = System.nanoTime ();
+			long count;
+			if (config.writeManifest != null) {
+				count = Manifest.write (config.whereA, config.writeManifest);
+				flusher.shutdownNow ();
+				if (progress != null) {
+					progress.clear ();
+				}
+				out.flush ();
+				info.println (HR);
+				info.printf ("Manifest entries: %,d%n", count);
+				return;
+			} else if (config.manifest != null) {
+				count = Manifest.compare (config.whereA, config.manifest);
+			} else if (config.replicas != null) {
+				count = new Replicas (config.replicas).compare ();
+			} else try (var walker = new Walker (config.threads)) {
+				count = walker.print (walker.walk (config.whereA, config.whereB));
+				if (walker.moves != null) {
+					count += walker.moves.print (config.whereA, config.whereB);
+				}
+				walker.saveCaches ();
+			}
+			flusher.shutdownNow ();
+			if (progress != null) {
+				progress.clear ();
+			}
 
-			stdout.println (HR);
-			stdout.printf ("Different folders & files: %d%n", count);
+			out.flush ();
+			info.println (HR);
+			info.printf ("Different folders & files: %d%n", count);
+			info.printf ("Metadata calls: %,d stat, %,d list%n", Stats.stat.sum (), Stats.list.sum ());
+			if (Stats.sumList.sum () > 0) {
+				info.printf ("Metadata calls summing sizes for the ETA: %,d stat, %,d list%n", Stats.sumStat.sum (), Stats.sumList.sum ());
+			}
+			if (Stats.same.sum () > 0) {
+				info.printf ("Same files not compared (hard links): %,d%n", Stats.same.sum ());
+			}
+			if (Stats.sameFolders.sum () > 0) {
+				info.printf ("Same folders not walked into (bind mounts or links): %,d%n", Stats.sameFolders.sum ());
+			}
+			if (config.levelCompare != CompareLevel.SIZE) {
+				long read = Stats.read (), size = Stats.size.sum ();
+				info.printf ("Bytes read: %,d of %,d (%.2f%%)%n", read, size, size > 0 ? 100.0 * read / size : 0.0);
+			}
+			if (config.cache) {
+				long lookups = DigestCache.lookups.sum (), hits = DigestCache.hits.sum ();
+				info.printf ("Digest cache hits: %,d of %,d (%.1f%%)%n",
+					hits, lookups, lookups > 0 ? 100.0 * hits / lookups : 0.0);
+				if (config.cacheVerify) {
+					info.printf ("Digest cache stale: %,d%n", DigestCache.stale.sum ());
+				}
+			}
+			info.printf ("Time: %.2f s; threads spent %.2f s listing, %.2f s on attributes, %.2f s reading, %.2f s comparing%n",
+				(System.nanoTime () - start) / 1e9, Stats.listTime.sum () / 1e9, Stats.statTime.sum () / 1e9,
+				Stats.readTime.sum () / 1e9, Stats.compareTime.sum () / 1e9);
 			
 		} catch (IOException e) {
 			stderr.println (e.getMessage ());
+		} finally {
+			out.flush ();
 		}
 	}
 
 	//------------------------------------------------------------------------
-	private static enum TurnAB { AB, BA };
-	
-	private static long walkFolderTree (final Path base, final Path target, final TurnAB turnAB)
-		throws IOException {
-		final var wildcards = new WildcardFileFilter (config.exclude, IOCase.SYSTEM);
-		final var count     = new AtomicLong (0);
-		
-		Files.walkFileTree (base, new SimpleFileVisitor<Path>() {
-			
-			//--------------------------------------------------------------------
-			@Override
-			public FileVisitResult preVisitDirectory (final Path base2, final BasicFileAttributes attrs) {
-				if (wildcards.accept (base2.toFile ())) {
-					return FileVisitResult.SKIP_SUBTREE;
-				}
-				
-				Path relative = base.relativize (base2), target2 = target.resolve (relative);
-				if (! Files.exists (target2, LinkOption.NOFOLLOW_LINKS)) {
-					count.incrementAndGet ();
-					String sayNoTarget = turnAB == TurnAB.AB ? "\t-\tX" : "\tX\t-";
-					stdout.println (relative + File.separator + sayNoTarget);
-					return FileVisitResult.SKIP_SUBTREE;
-				}
-				
-				return FileVisitResult.CONTINUE;
+	/**
+	 * File name wildcards to exclude, compiled once for all entries.
+	 * Names without wildcards, and wildcards as *suffix or prefix*, are looked up in hash sets,
+	 * only at the few lengths they come in; the rest are joined into a single regular expression.
+	 * Case insensitive on Windows, as file names are there.
+	 */
+	static final class Exclusion {
+		static final boolean IGNORE_CASE = File.separatorChar == '\\';
+
+		final Set<String>   names    = new HashSet<> ();
+		final Set<String>   suffixes = new HashSet<> (), prefixes = new HashSet<> ();
+		final int[]         suffixLengths, prefixLengths;
+		final Pattern       pattern;
+
+		Exclusion (final Collection<String> wildcards) {
+			var regex = new StringJoiner ("|");
+			for (String wildcard : wildcards) {
+				String w = fold (wildcard.trim ());
+				int star = w.indexOf ('*');
+				boolean single = w.indexOf ('?') < 0 && star == w.lastIndexOf ('*');
+				if (w.isEmpty ()) {
+					continue;
+				} else if (single && star < 0) {
+					names.add (w);
+				} else if (single && star == 0) {
+					suffixes.add (w.substring (1));
+				} else if (single && star == w.length () - 1) {
+					prefixes.add (w.substring (0, star));
+				} else {
+					regex.add (toRegex (w));
+				}
 			}
-			
-			//--------------------------------------------------------------------
-			@Override
-			public FileVisitResult visitFile (final Path base2, final BasicFileAttributes attrs) {
-				Path relative = base.relativize (base2);
-				String relatives = relative.toString ();
-				Path target2 = target.resolve (relative);
-				
+			suffixLengths = suffixes.stream ().mapToInt (String::length).distinct ().sorted ().toArray ();
+			prefixLengths = prefixes.stream ().mapToInt (String::length).distinct ().sorted ().toArray ();
+			pattern       = regex.length () > 0 ? Pattern.compile (regex.toString (), Pattern.DOTALL) : null;
+		}
+
+		/** @return true if the file name matches any wildcard. */
+		boolean matches (final String fileName) {
+			String name = fold (fileName);
+			if (names.contains (name)) {
+				return true;
+			}
+			for (int n : suffixLengths) {
+				if (n > name.length ()) {
+					break;
+				} else if (suffixes.contains (name.substring (name.length () - n))) {
+					return true;
+				}
+			}
+			for (int n : prefixLengths) {
+				if (n > name.length ()) {
+					break;
+				} else if (prefixes.contains (name.substring (0, n))) {
+					return true;
+				}
+			}
+			return pattern != null && pattern.matcher (name).matches ();
+		}
+
+		private static String fold (final String s) {
+			return IGNORE_CASE ? s.toLowerCase (Locale.ROOT) : s;
+		}
+
+		/** @return regular expression of a wildcard with * and ? */
+		private static String toRegex (final String wildcard) {
+			var regex = new StringBuilder ("(?:");
+			for (int i = 0 ; i < wildcard.length () ; i++) {
+				char c = wildcard.charAt (i);
+				if (c == '*') {
+					regex.append (".*");
+				} else if (c == '?') {
+					regex.append ('.');
+				} else if (Character.isLetterOrDigit (c)) {
+					regex.append (c);
+				} else {
+					regex.append ('\\').append (c);
+				}
+			}
+			return regex.append (')').toString ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Counters shared by all threads. */
+	static final class Stats {
+		static final LongAdder stat    = new LongAdder ();
+		static final LongAdder list    = new LongAdder ();
+		/** Metadata calls summing sizes ahead for the ETA, apart from those of the compare. */
+		static final LongAdder sumStat = new LongAdder (), sumList = new LongAdder ();
+		/** Entries visited in A and B. */
+		static final LongAdder visited = new LongAdder ();
+		/** Files in A and B found to be the same file, not compared; folders the same, not walked into. */
+		static final LongAdder same    = new LongAdder (), sameFolders = new LongAdder ();
+		/** Bytes of all files found in A and B. */
+		static final LongAdder size    = new LongAdder ();
+		/** Bytes read from files in A and in B to compare. */
+		static final LongAdder readA   = new LongAdder (), readB = new LongAdder ();
+		/** Bytes read from files in replicas C, D... to compare. */
+		static final LongAdder readOthers = new LongAdder ();
+		/** Nanoseconds spent by all threads listing folders, getting attributes, reading and comparing. */
+		static final LongAdder listTime = new LongAdder (), statTime = new LongAdder (),
+		                       readTime = new LongAdder (), compareTime = new LongAdder ();
+		/** Relative path visited last, for the progress line. */
+		static volatile String current = "";
+
+		static long read () {
+			return readA.sum () + readB.sum () + readOthers.sum ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Progress line on standard error, redrawn by the thread flushing the output so they do not mix:
+	 * entries visited, bytes read, read rate of A and B in the last period, the path visited last,
+	 * and the estimated time left of a full compare.
+	 * Redrawn in place each second on a console, or printed as a line every 10 seconds otherwise.
+	 */
+	static final class Progress implements Runnable {
+		static final int    WIDTH   = 40;
+		final boolean       console = System.console () != null;
+		final long          start   = System.nanoTime ();
+		long                last    = start, lastA, lastB;
+		int                 ticks, shown;
+		/** Bytes of all files, summed ahead of the compare by another thread. */
+		final LongAdder     total   = new LongAdder ();
+		volatile boolean    summed;
+
+		/** Sum the sizes of files in the folders on a thread of its own, for the ETA. */
+		void sum (final Path... roots) {
+			daemon ("sizer").newThread (() -> {
 				try {
-					if (Files.exists (target2, LinkOption.NOFOLLOW_LINKS)) {
-						if (turnAB == TurnAB.AB) {
-							int c = compareFileSize (base2, target2, relatives);
-							if (c > 0) {
-								count.addAndGet (c);
-							} else if (config.levelCompare != CompareLevel.SIZE) {
-								count.addAndGet (compareFileContent (base2, target2,
-									config.levelCompare == CompareLevel.PARTIAL ? PARTIAL_COMPARE_SIZE : 0, relatives));
+					for (Path root : roots) {
+						Files.walkFileTree (root, new SimpleFileVisitor<Path> () {
+							@Override public FileVisitResult preVisitDirectory (final Path folder, final BasicFileAttributes attrs) {
+								Stats.sumStat.increment ();
+								if (! folder.equals (root) && isSkipped (root, folder)) {
+									return FileVisitResult.SKIP_SUBTREE;
+								}
+								Stats.sumList.increment ();
+								return FileVisitResult.CONTINUE;
 							}
+							@Override public FileVisitResult visitFile (final Path file, final BasicFileAttributes attrs) {
+								Stats.sumStat.increment ();
+								if (attrs.isRegularFile () && ! isSkipped (root, file)) {
+									total.add (attrs.size ());
+								}
+								return FileVisitResult.CONTINUE;
+							}
+							@Override public FileVisitResult visitFileFailed (final Path file, final IOException e) {
+								Stats.sumStat.increment ();
+								return FileVisitResult.CONTINUE;
+							}
+						});
+					}
+					summed = true;
+				} catch (IOException e) {
+					// no ETA
+				}
+			}).start ();
+		}
+
+		/** @return whether the walk of the compare leaves out the entry, by name or as the digest cache. */
+		private static boolean isSkipped (final Path root, final Path p) {
+			String name = p.getFileName ().toString ();
+			return config.exclusion.matches (name) || p.getParent ().equals (root) && DigestCache.isCache (name);
+		}
+
+		@Override public synchronized void run () {
+			clear ();
+			out.flush ();
+			if (! console && ++ticks % 10 != 0) {
+				return;
+			}
+			long now = System.nanoTime (), readA = Stats.readA.sum (), readB = Stats.readB.sum (), read = Stats.read ();
+			double seconds = (now - last) / 1e9;
+			var line = new StringBuilder (String.format ("%,d entries, %,d MB read, A %,.1f MB/s, B %,.1f MB/s",
+				Stats.visited.sum (), read / MB, (readA - lastA) / seconds / MB, (readB - lastB) / seconds / MB));
+			long size = total.sum ();
+			if (config.levelCompare == CompareLevel.FULL && ! summed) {
+				line.append (String.format (", %,d MB found", size / MB));
+			} else if (config.levelCompare == CompareLevel.FULL && read > 0 && size > read) {
+				long left = (long) ((size - read) * ((now - start) / 1e9) / read);
+				line.append (String.format (", ETA %d:%02d:%02d", left / 3600, left / 60 % 60, left % 60));
+			}
+			String current = Stats.current;
+			line.append (", ").append (current.length () > WIDTH ? "..." + current.substring (current.length () - WIDTH + 3) : current);
+			last  = now;
+			lastA = readA;
+			lastB = readB;
+
+			if (console) {
+				stderr.print ("\r" + line);
+				shown = line.length ();
+			} else {
+				stderr.println (line);
+			}
+			stderr.flush ();
+		}
+
+		/** Erase the line shown on a console. */
+		synchronized void clear () {
+			if (shown > 0) {
+				stderr.print ("\r" + " ".repeat (shown) + "\r");
+				stderr.flush ();
+				shown = 0;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Output formats: text for people, or one record per difference for programs. */
+	static enum OutputFormat {
+		TEXT, JSONL, CSV, TSV;
+
+		static final String[] COLUMNS = {
+			"path", "kind", "size_a", "size_b", "offset", "type_a", "type_b", "digest_a", "digest_b", "target", "error",
+			"modified_a", "modified_b" };
+		/** Columns of numbers, not quoted in JSON. */
+		static final Set<String> NUMBERS = Set.of ("size_a", "size_b", "offset");
+
+		/** @return header line, or null if none */
+		String header () {
+			switch (this) {
+			case TEXT: return "Path\tA\tB";
+			case CSV:  return String.join (",",  COLUMNS);
+			case TSV:  return String.join ("\t", COLUMNS);
+			default:   return null;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return a line of the values in this format, null values left out or empty. */
+		String record (final String[] columns, final String[] values) {
+			var s = new StringBuilder (128);
+			for (int i = 0 ; i < values.length ; i++) {
+				String v = values[i];
+				switch (this) {
+				case JSONL:
+					if (v != null) {
+						s.append (s.length () == 0 ? '{' : ',').append ('"').append (columns[i]).append ("\":");
+						if (NUMBERS.contains (columns[i])) {
+							s.append (v);
+						} else {
+							escapeJson (s, v);
 						}
-							
+					}
+					break;
+				case CSV:
+					if (i > 0) s.append (',');
+					if (v != null && (v.indexOf (',') >= 0 || v.indexOf ('"') >= 0 || v.indexOf ('\n') >= 0 || v.indexOf ('\r') >= 0)) {
+						s.append ('"').append (v.replace ("\"", "\"\"")).append ('"');
+					} else if (v != null) {
+						s.append (v);
+					}
+					break;
+				default:
+					if (i > 0) s.append ('\t');
+					if (v != null) {
+						s.append (v.replace ("\\", "\\\\").replace ("\t", "\\t").replace ("\n", "\\n").replace ("\r", "\\r"));
+					}
+				}
+			}
+			return this == JSONL ? s.append ('}').toString () : s.toString ();
+		}
+
+		private static void escapeJson (final StringBuilder s, final String v) {
+			s.append ('"');
+			for (int i = 0 ; i < v.length () ; i++) {
+				char c = v.charAt (i);
+				switch (c) {
+				case '"':  s.append ("\\\""); break;
+				case '\\': s.append ("\\\\"); break;
+				case '\n': s.append ("\\n");  break;
+				case '\r': s.append ("\\r");  break;
+				case '\t': s.append ("\\t");  break;
+				default:
+					if (c < 0x20) {
+						s.append (String.format ("\\u%04x", (int) c));
 					} else {
-						count.incrementAndGet ();
-						String sayNoTarget = turnAB == TurnAB.AB ? "\t-\tX" : "\tX\t-";
-						stdout.println (relative + sayNoTarget);
+						s.append (c);
 					}
-					
-				} catch (IOException e) {
-					count.incrementAndGet ();
-					stdout.printf ("%s\t%s = %s%n", relatives, e.getClass ().getName (), e.getMessage ());
 				}
-				
-				return FileVisitResult.CONTINUE;
 			}
-			
-			//--------------------------------------------------------------------
-			@Override
-			public FileVisitResult visitFileFailed (final Path base2, final IOException exc) throws IOException {
-				Path relative = base.relativize (base2), target2 = target.resolve (relative);
-				var exists = Files.exists (target2, LinkOption.NOFOLLOW_LINKS) ? "-" : "X";
-				var prompt = "\t%s\t%s%n";
-				if (turnAB == TurnAB.AB) {
-					stdout.printf (prompt, exc.getMessage (), exists);
+			s.append ('"');
+		}
+	}
+
+	//------------------------------------------------------------------------
+	static enum Kind { ONLY_A, ONLY_B, MOVED, SIZE, CONTENT, DIGEST, MODIFIED, TYPE, ERROR }
+
+	/** A difference found between A and B. */
+	static final class Diff {
+		final String  relative;
+		final Kind    kind;
+		long          sizeA = -1, sizeB = -1;
+		long          offset = -1;
+		boolean       folderA, folderB;
+		byte[]        digestA, digestB;
+		FileTime      modifiedA, modifiedB;
+		String        target;
+		String        error;
+
+		Diff (final String relative, final Kind kind) {
+			this.relative = relative;
+			this.kind     = kind;
+		}
+
+		static Diff error (final String relative, final Exception e) {
+			var diff = new Diff (relative, Kind.ERROR);
+			diff.error = e.getClass ().getName () + " = " + e.getMessage ();
+			return diff;
+		}
+
+		/** @return a line of tab separated values. */
+		@Override public String toString () {
+			switch (kind) {
+			case ONLY_A:  return relative + "\t-\tX";
+			case ONLY_B:  return relative + "\tX\t-";
+			case MOVED:   return "moved: " + relative + " -> " + target;
+			case SIZE:    return String.format ("%s\tsize = %d\tsize = %d", relative, sizeA, sizeB);
+			case CONTENT: return String.format ("%s\tdiff @ %d\tdiff @ %d", relative, offset, offset);
+			case DIGEST:  return String.format ("%s\tdigest = %s\tdigest = %s", relative, hex (digestA), hex (digestB));
+			case MODIFIED: return String.format ("%s\tmodified = %s\tmodified = %s", relative, modifiedA, modifiedB);
+			case TYPE:    return String.format ("%s\t%s\t%s", relative, folderA ? "folder" : "-", folderB ? "folder" : "-");
+			default:      return relative + "\t" + error;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return a line in the format, fields not applicable left empty. */
+		String toRecord (final OutputFormat format) {
+			if (format == OutputFormat.TEXT) {
+				return toString ();
+			}
+			String[] values = {
+				relative,
+				kind.name ().toLowerCase (),
+				sizeA  >= 0 ? Long.toString (sizeA)  : null,
+				sizeB  >= 0 ? Long.toString (sizeB)  : null,
+				offset >= 0 ? Long.toString (offset) : null,
+				kind == Kind.TYPE ? (folderA ? "folder" : "file") : null,
+				kind == Kind.TYPE ? (folderB ? "folder" : "file") : null,
+				digestA != null ? hex (digestA) : null,
+				digestB != null ? hex (digestB) : null,
+				target,
+				error,
+				modifiedA != null ? modifiedA.toString () : null,
+				modifiedB != null ? modifiedB.toString () : null };
+			return format.record (OutputFormat.COLUMNS, values);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Outcome of visiting a folder entry: a difference if any, then the entries inside if a folder. */
+	static final class Visit {
+		Diff                    diff;
+		Queue<Task>             entries = new ArrayDeque<> (0);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Visit of an entry, run by the pool if let run ahead of printing,
+	 * or else on demand by the printer asking for its result, whichever claims it first.
+	 * Ordered as printed: by each name in the relative path.
+	 */
+	static final class Task extends FutureTask<Visit> implements Comparable<Task> {
+		final String[]      names;
+		final AtomicBoolean claimed = new AtomicBoolean ();
+		/** Run by the pool, holding a permit to run ahead until printed. */
+		boolean             ahead   = false;
+
+		Task (final Path relative, final Callable<Visit> visit) {
+			super (visit);
+			names = new String [relative.getNameCount ()];
+			for (int i = 0 ; i < names.length ; i++) {
+				names[i] = relative.getName (i).toString ();
+			}
+		}
+
+		boolean claim () {
+			return claimed.compareAndSet (false, true);
+		}
+
+		@Override public Visit get () throws InterruptedException, ExecutionException {
+			if (claim ()) {
+				run ();
+			}
+			return super.get ();
+		}
+
+		@Override public int compareTo (final Task other) {
+			int n = Math.min (names.length, other.names.length);
+			for (int i = 0 ; i < n ; i++) {
+				int c = names[i].compareTo (other.names[i]);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return names.length - other.names.length;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Walk folder trees A and B together, listing each folder pair once
+	 * and merging the sorted listings into entries only in A, only in B or in both.
+	 * Each entry is visited as a separate task.
+	 * With more than 1 thread, tasks run ahead on a work-stealing pool, first those to print first,
+	 * up to a number of visits not printed yet, so memory grows with the depth of the trees, not their size;
+	 * otherwise, or beyond that, they run on demand while printing.
+	 * Either way differences are printed in the same order, sorted by relative path.
+	 */
+	static final class Walker implements Closeable {
+		/** Visits run ahead of printing at most. */
+		static final int            AHEAD = 1 << 12;
+
+		final ForkJoinPool          pool;
+		final Semaphore             ahead   = new Semaphore (AHEAD);
+		/** Visits not run yet, first those to print first. */
+		final Queue<Task>           waiting = new PriorityBlockingQueue<> ();
+		final DigestCache           cacheA, cacheB;
+		final Moves                 moves = config.detectMoves ? new Moves () : null;
+
+		Walker (final int threads) throws IOException {
+			pool   = threads > 1 ? new ForkJoinPool (threads) : null;
+			cacheA = config.cache ? DigestCache.open (config.whereA) : null;
+			cacheB = config.cache ? DigestCache.open (config.whereB) : null;
+		}
+
+		@Override public void close () {
+			if (pool != null) {
+				pool.shutdownNow ();
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** Save digests of the files visited, dropping the others. */
+		void saveCaches () {
+			if (cacheA != null) {
+				for (var cache : List.of (cacheA, cacheB)) {
+					try {
+						cache.save ();
+					} catch (IOException e) {
+						stderr.printf ("Cannot save digest cache %s: %s%n", cache.file, e);
+					}
+				}
+			}
+		}
+
+		//--------------------------------------------------------------------
+		Task submit (final Path relative, final Callable<Visit> visit) {
+			var task = new Task (relative, visit);
+			if (pool != null) {
+				waiting.add (task);
+				runAhead ();
+			}
+			return task;
+		}
+
+		//--------------------------------------------------------------------
+		/** Let the pool run visits waiting, first those to print first, as far as permits go. */
+		private void runAhead () {
+			while (! waiting.isEmpty () && ahead.tryAcquire ()) {
+				var task = waiting.poll ();
+				if (task != null && task.claim ()) {
+					task.ahead = true;
+					pool.execute (task);
 				} else {
-					stdout.printf (prompt, exists, exc.getMessage ());
+					// already run by the printer
+					ahead.release ();
 				}
-				return FileVisitResult.CONTINUE;
 			}
-			
-		});
-		return count.get ();
+		}
+
+		//--------------------------------------------------------------------
+		/** Start walking A and B. */
+		Task walk (final Path baseA, final Path baseB) {
+			var root = Path.of ("");
+			return submit (root, () -> visit (baseA, baseB, root, true, true));
+		}
+
+		//--------------------------------------------------------------------
+		/** Print differences in order as they come. @return number of differences. */
+		long print (final Task pending) throws IOException {
+			Visit visit;
+			try {
+				visit = pending.get ();
+			} catch (ExecutionException e) {
+				throw new IOException (e.getCause ());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			}
+			if (pending.ahead) {
+				ahead.release ();
+				runAhead ();
+			}
+
+			long count = 0;
+			if (visit.diff != null && moves != null) {
+				moves.add (visit.diff);
+			} else if (visit.diff != null) {
+				out.println (visit.diff.toRecord (config.format));
+				count++;
+			}
+			for (Task entry ; (entry = visit.entries.poll ()) != null ;) {
+				count += print (entry);
+			}
+			return count;
+		}
+
+		//--------------------------------------------------------------------
+		/** Visit an entry at the same relative path in A and B, present in at least one of them. */
+		private Visit visit (final Path baseA, final Path baseB, final Path relative, final boolean inA, final boolean inB) {
+			var visit = new Visit ();
+			Path pathA = baseA.resolve (relative), pathB = baseB.resolve (relative);
+			String relatives = relative.toString ();
+
+			try {
+				// excluded by name, before getting attributes
+				if (relatives.length () > 0 && config.exclusion.matches (relative.getFileName ().toString ())) {
+					return visit;
+				}
+				if (relative.getNameCount () == 1 && DigestCache.isCache (relatives)) {
+					return visit;
+				}
+				Stats.current = relatives;
+				Stats.visited.add ((inA ? 1 : 0) + (inB ? 1 : 0));
+				var attrsA = inA ? stat (pathA) : null;
+				var attrsB = inB ? stat (pathB) : null;
+				Stats.size.add ((attrsA != null && attrsA.isRegularFile () ? attrsA.size () : 0)
+				              + (attrsB != null && attrsB.isRegularFile () ? attrsB.size () : 0));
+				// symbolic links are followed to compare but not walked into
+				boolean folderA = attrsA != null && attrsA.isDirectory () && ! attrsA.isSymbolicLink ();
+				boolean folderB = attrsB != null && attrsB.isDirectory () && ! attrsB.isSymbolicLink ();
+
+				if (cacheA != null) {
+					cacheA.keep (relatives, attrsA);
+					cacheB.keep (relatives, attrsB);
+				}
+
+				if (moves != null && (folderA && ! inB || folderB && ! inA)) {
+					// files inside may have been moved
+					visit.entries = list (baseA, baseB, relative, inA, inB);
+				}
+				if (! visit.entries.isEmpty ()) {
+					// walking into a folder only on one side
+				} else if (! inB) {
+					visit.diff = new Diff (folderA ? relatives + File.separator : relatives, Kind.ONLY_A);
+					visit.diff.folderA = folderA;
+					visit.diff.sizeA   = folderA ? -1 : attrsA.size ();
+				} else if (! inA) {
+					visit.diff = new Diff (folderB ? relatives + File.separator : relatives, Kind.ONLY_B);
+					visit.diff.folderB = folderB;
+					visit.diff.sizeB   = folderB ? -1 : attrsB.size ();
+				} else if (isSameFile (attrsA, attrsB)) {
+					// hard links, or the same folder reached by 2 paths
+					(attrsA.isDirectory () ? Stats.sameFolders : Stats.same).increment ();
+				} else if (folderA && folderB) {
+					visit.entries = list (baseA, baseB, relative, true, true);
+				} else if (folderA || folderB) {
+					visit.diff = new Diff (relatives, Kind.TYPE);
+					visit.diff.folderA = folderA;
+					visit.diff.folderB = folderB;
+				} else {
+					visit.diff = compareFileSize (attrsA, attrsB, relatives);
+					if (visit.diff == null && (cacheA != null || config.hash != null)
+					&&  attrsA.isRegularFile () && attrsB.isRegularFile ()) {
+						visit.diff = compareFileDigest (pathA, pathB, attrsA, attrsB, relatives);
+					} else if (visit.diff == null && config.levelCompare != CompareLevel.SIZE) {
+						visit.diff = compareFileContent (pathA, pathB, attrsA, attrsB,
+							config.levelCompare == CompareLevel.PARTIAL ? PARTIAL_COMPARE_SIZE : 0, relatives);
+					}
+				}
+
+			} catch (IOException | UncheckedIOException e) {
+				visit.diff = Diff.error (relatives, e);
+			}
+			return visit;
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * Compare by digests, cached for unchanged files if caching,
+		 * reading only files without a cached digest.
+		 * In hash mode, both files are read at the same time on separate threads.
+		 * Differences are reported by digest, whether read or cached.
+		 * @return null if equal
+		 */
+		private Diff compareFileDigest (final Path pathA, final Path pathB,
+			final BasicFileAttributes attrsA, final BasicFileAttributes attrsB, final String relatives)
+			throws IOException {
+			byte[] digestA = cacheA != null ? cacheA.lookup (relatives, attrsA) : null;
+			byte[] digestB = cacheB != null ? cacheB.lookup (relatives, attrsB) : null;
+
+			boolean equal;
+			if (digestA == null && digestB == null && config.hash == null) {
+				var mdA = Hasher.of (config.algorithm ());
+				var mdB = Hasher.of (config.algorithm ());
+				try (var c1 = FileChannel.open (pathA, StandardOpenOption.READ);
+				     var c2 = FileChannel.open (pathB, StandardOpenOption.READ)) {
+					equal = mismatchDigest (c1, c2, mdA, mdB) < 0;
+				}
+				digestA = mdA.digest ();
+				digestB = mdB.digest ();
+			} else {
+				if (digestA == null && digestB == null) {
+					var futureA = readers.submit (() -> digest (pathA, Stats.readA));
+					digestB = digest (pathB, Stats.readB);
+					digestA = await (futureA);
+				} else if (digestA == null) {
+					digestA = digest (pathA, Stats.readA);
+				} else if (digestB == null) {
+					digestB = digest (pathB, Stats.readB);
+				}
+				equal = Arrays.equals (digestA, digestB);
+			}
+			if (cacheA != null) {
+				cacheA.put (relatives, attrsA, digestA);
+				cacheB.put (relatives, attrsB, digestB);
+			}
+			if (equal) {
+				return null;
+			}
+			var diff = new Diff (relatives, Kind.DIGEST);
+			diff.sizeA   = attrsA.size ();
+			diff.sizeB   = attrsB.size ();
+			diff.digestA = digestA;
+			diff.digestB = digestB;
+			return diff;
+		}
+
+		//--------------------------------------------------------------------
+		private static <T> T await (final Future<T> future) throws IOException {
+			try {
+				return future.get ();
+			} catch (ExecutionException e) {
+				if (e.getCause () instanceof IOException) {
+					throw (IOException) e.getCause ();
+				}
+				throw new IOException (e.getCause ());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return true if both are the same file, as told by device and inode where the file system has them. */
+		private static boolean isSameFile (final BasicFileAttributes attrsA, final BasicFileAttributes attrsB) {
+			Object key = attrsA.fileKey ();
+			return key != null && key.equals (attrsB.fileKey ());
+		}
+
+		//--------------------------------------------------------------------
+		/** @return attributes of the path, of the link target if a symbolic link. */
+		private static BasicFileAttributes stat (final Path p) throws IOException {
+			Stats.stat.increment ();
+			long start = System.nanoTime ();
+			var attrs = Files.readAttributes (p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (! attrs.isSymbolicLink ()) {
+				Stats.statTime.add (System.nanoTime () - start);
+				return attrs;
+			}
+			Stats.stat.increment ();
+			BasicFileAttributes target;
+			try {
+				target = Files.readAttributes (p, BasicFileAttributes.class);
+			} finally {
+				Stats.statTime.add (System.nanoTime () - start);
+			}
+			return new BasicFileAttributes () {
+				@Override public FileTime lastModifiedTime () { return target.lastModifiedTime (); }
+				@Override public FileTime lastAccessTime   () { return target.lastAccessTime (); }
+				@Override public FileTime creationTime     () { return target.creationTime (); }
+				@Override public boolean  isRegularFile    () { return target.isRegularFile (); }
+				@Override public boolean  isDirectory      () { return target.isDirectory (); }
+				@Override public boolean  isSymbolicLink   () { return true; }
+				@Override public boolean  isOther          () { return target.isOther (); }
+				@Override public long     size             () { return target.size (); }
+				@Override public Object   fileKey          () { return target.fileKey (); }
+			};
+		}
+
+		//--------------------------------------------------------------------
+		/** Merge the sorted listings of a folder in A and B, submitting a visit for each name. */
+		private Queue<Task> list (final Path baseA, final Path baseB, final Path relative,
+			final boolean inA, final boolean inB) throws IOException {
+			var namesA = inA ? names (baseA.resolve (relative)) : List.<String>of ();
+			var namesB = inB ? names (baseB.resolve (relative)) : List.<String>of ();
+
+			var visits = new ArrayDeque<Task> (Math.max (namesA.size (), namesB.size ()));
+			for (int a = 0, b = 0 ; a < namesA.size () || b < namesB.size () ;) {
+				int c = a >= namesA.size () ? 1 : b >= namesB.size () ? -1 : namesA.get (a).compareTo (namesB.get (b));
+				Path relative2 = relative.resolve (c <= 0 ? namesA.get (a) : namesB.get (b));
+				visits.add (submit (relative2, () -> visit (baseA, baseB, relative2, c <= 0, c >= 0)));
+				if (c <= 0) a++;
+				if (c >= 0) b++;
+			}
+			return visits;
+		}
+
+		//--------------------------------------------------------------------
+		/** @return names in the folder, sorted. */
+		private static List<String> names (final Path folder) throws IOException {
+			Stats.list.increment ();
+			long start = System.nanoTime ();
+			var names = new ArrayList<String> ();
+			try (var entries = Files.newDirectoryStream (folder)) {
+				for (Path entry : entries) {
+					names.add (entry.getFileName ().toString ());
+				}
+			} catch (DirectoryIteratorException e) {
+				throw e.getCause ();
+			} finally {
+				Stats.listTime.add (System.nanoTime () - start);
+			}
+			Collections.sort (names);
+			return names;
+		}
 	}
 
 	//------------------------------------------------------------------------
-	/** @return 0: equal, 1: different */
-	private static int compareFileSize (final Path p1, final Path p2, final String relatives)
-		throws IOException {
-		long s1 = Files.size (p1), s2 = Files.size (p2);
+	/** @return null if equal */
+	private static Diff compareFileSize (final BasicFileAttributes a1, final BasicFileAttributes a2, final String relatives) {
+		long s1 = a1.size (), s2 = a2.size ();
 		if (s1 == s2) {
-			return 0;
+			return null;
 		} else {
-			stdout.printf ("%s\tsize = %d\tsize = %d%n", relatives, s1, s2);
-			return 1;
+			var diff = new Diff (relatives, Kind.SIZE);
+			diff.sizeA = s1;
+			diff.sizeB = s2;
+			return diff;
 		}
 	}
 
 	//------------------------------------------------------------------------
 	/**
-	 * @param limit 0 or negative stands for no limit 
-	 * @return 0: equal, 1: different
+	 * @param limit 0 or negative stands for no limit, ignored if sampling
+	 * @return null if equal
 	 */
-	private static int compareFileContent (final Path p1, final Path p2, final int limit, final String relatives)
+	private static Diff compareFileContent (final Path p1, final Path p2,
+		final BasicFileAttributes a1, final BasicFileAttributes a2, final int limit, final String relatives)
 		throws IOException {
-		boolean folder1 = Files.isDirectory (p1), folder2 = Files.isDirectory (p2);
+		boolean folder1 = a1.isDirectory (), folder2 = a2.isDirectory ();
 		if (folder1 && folder2) {
-			return 0;
+			return null;
 		} else if (folder1 != folder2) {
-			stdout.printf ("%s\t%s\t%s%n", relatives, folder1 ? "folder" : "-", folder2 ? "folder" : "-");
-			return 1;
+			var diff = new Diff (relatives, Kind.TYPE);
+			diff.folderA = folder1;
+			diff.folderB = folder2;
+			return diff;
 		}
 		
-		try (var in1 = Files.newInputStream (p1); var in2 = Files.newInputStream (p2)) {
-			
-			for (long i = 0 ; limit <= 0 || i < limit; i++) {
-				int b1 = in1.read (), b2 = in2.read ();
-				if (b1 < 0 && b2 < 0) {
-					return 0;
-				}
-				if (b1 != b2 || b1 < 0 || b2 < 0) {
-					stdout.printf ("%s\tdiff @ %d\tdiff @ %d%n", relatives, i, i);
-					return 1;
-				}
+		try (var c1 = FileChannel.open (p1, StandardOpenOption.READ);
+		     var c2 = FileChannel.open (p2, StandardOpenOption.READ)) {
+			long i = config.levelCompare == CompareLevel.SAMPLE ? mismatchSampled (c1, c2) : mismatch (c1, c2, limit);
+			if (i >= 0) {
+				var diff = new Diff (relatives, Kind.CONTENT);
+				diff.sizeA  = a1.size ();
+				diff.sizeB  = a2.size ();
+				diff.offset = i;
+				return diff;
+			}
+		}
+		return null;
+	}
+
+	//------------------------------------------------------------------------
+	/** A pair of direct buffers for each thread, reused by every compare. */
+	private static final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial (() -> new ByteBuffer[] {
+		ByteBuffer.allocateDirect (BLOCK_SIZE), ByteBuffer.allocateDirect (BLOCK_SIZE) });
+
+	//------------------------------------------------------------------------
+	/**
+	 * Compare 2 files block by block.
+	 * @param limit 0 or negative stands for no limit
+	 * @return offset of the first different byte, or -1 if equal.
+	 * A file ends earlier than the other differs at its end.
+	 */
+	static long mismatch (final FileChannel c1, final FileChannel c2, final long limit)
+		throws IOException {
+		long size1 = c1.size (), size2 = c2.size ();
+		long length = Math.min (size1, size2);
+		if (limit > 0) {
+			length = Math.min (length, limit);
+		}
+
+		long i = length >= MAP_THRESHOLD ? mismatchMapped (c1, c2, length) : mismatchBuffered (c1, c2, 0, length);
+		if (i >= 0) {
+			return i;
+		}
+		if (size1 != size2 && (limit <= 0 || length < limit)) {
+			return length;
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------------------
+	/** Compare the first length bytes through memory mapped regions. */
+	private static long mismatchMapped (final FileChannel c1, final FileChannel c2, final long length)
+		throws IOException {
+		for (long position = 0 ; position < length ; position += MAP_REGION) {
+			long size = Math.min (MAP_REGION, length - position);
+			long start = System.nanoTime ();
+			var b1 = c1.map (FileChannel.MapMode.READ_ONLY, position, size);
+			var b2 = c2.map (FileChannel.MapMode.READ_ONLY, position, size);
+			// pages are read as compared, so the time counts as reading
+			int i = b1.mismatch (b2);
+			Stats.readTime.add (System.nanoTime () - start);
+			Stats.readA.add (i >= 0 ? i + 1 : size);
+			Stats.readB.add (i >= 0 ? i + 1 : size);
+			if (i >= 0) {
+				return position + i;
+			}
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Compare the head, the tail and some blocks in between of 2 files of the same size,
+	 * evenly spaced or at seeded random positions.
+	 * @return offset of the first different byte found, or -1 if none found.
+	 */
+	static long mismatchSampled (final FileChannel c1, final FileChannel c2)
+		throws IOException {
+		var starts = sampleStarts (Math.min (c1.size (), c2.size ()));
+		if (starts == null) {
+			return mismatch (c1, c2, 0);
+		}
+		for (long start : starts) {
+			long i = mismatchBuffered (c1, c2, start, start + config.sampleSize);
+			if (i >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return sorted positions of the blocks to sample, or null if the whole file is to be read. */
+	static long[] sampleStarts (final long size) {
+		int block = config.sampleSize, n = config.samples;
+		if (size <= (long) block * (n + 2)) {
+			return null;
+		}
+
+		var starts = new long [n + 2];
+		var random = config.sampleSeed != null ? new Random (config.sampleSeed) : null;
+		long last = size - block;
+		for (int k = 1 ; k <= n ; k++) {
+			long start = random != null ? (long) (random.nextDouble () * last) : last / (n + 1) * k;
+			starts[k] = start - start % block;
+		}
+		starts[n + 1] = last;
+		Arrays.sort (starts);
+		return starts;
+	}
+
+	//------------------------------------------------------------------------
+	/** Compare bytes from position to end through the pooled direct buffers. */
+	private static long mismatchBuffered (final FileChannel c1, final FileChannel c2, long position, final long end)
+		throws IOException {
+		var b = buffers.get ();
+		var b1 = b[0];
+		var b2 = b[1];
+		while (position < end) {
+			int size = (int) Math.min (BLOCK_SIZE, end - position);
+			int n1 = readFully (c1, b1, position, size, Stats.readA), n2 = readFully (c2, b2, position, size, Stats.readB);
+			long start = System.nanoTime ();
+			int i = b1.mismatch (b2);
+			Stats.compareTime.add (System.nanoTime () - start);
+			if (i >= 0) {
+				return position + i;
+			}
+			if (n1 < size || n2 < size) {
+				// file shrunk while comparing
+				return position + Math.min (n1, n2);
+			}
+			position += size;
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------------------
+	/** Read size bytes at position unless end of file. Buffer is flipped for reading. */
+	static int readFully (final FileChannel c, final ByteBuffer b, final long position, final int size,
+		final LongAdder read) throws IOException {
+		long start = System.nanoTime ();
+		b.clear ().limit (size);
+		while (b.hasRemaining ()) {
+			if (c.read (b, position + b.position ()) < 0) {
+				break;
+			}
+		}
+		b.flip ();
+		Stats.readTime.add (System.nanoTime () - start);
+		read.add (b.limit ());
+		return b.limit ();
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Compare 2 files of the same size to the end, digesting both.
+	 * @return offset of the first different byte, or -1 if equal.
+	 */
+	static long mismatchDigest (final FileChannel c1, final FileChannel c2,
+		final Hasher d1, final Hasher d2) throws IOException {
+		var b = buffers.get ();
+		var b1 = b[0];
+		var b2 = b[1];
+		long first = -1;
+		for (long position = 0 ;;) {
+			int n1 = readFully (c1, b1, position, BLOCK_SIZE, Stats.readA), n2 = readFully (c2, b2, position, BLOCK_SIZE, Stats.readB);
+			if (n1 == 0 && n2 == 0) {
+				return first;
+			}
+			long start = System.nanoTime ();
+			if (first < 0) {
+				int i = b1.mismatch (b2);
+				if (i >= 0) {
+					first = position + i;
+				}
+			}
+			d1.update (b1);
+			d2.update (b2);
+			Stats.compareTime.add (System.nanoTime () - start);
+			position += Math.max (n1, n2);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return digest of the whole file, counting bytes read as of A or B */
+	static byte[] digest (final Path p, final LongAdder read) throws IOException {
+		var d = Hasher.of (config.algorithm ());
+		try (var c = FileChannel.open (p, StandardOpenOption.READ)) {
+			digest (c, d, 0, Long.MAX_VALUE, read);
+		}
+		return d.digest ();
+	}
+
+	//------------------------------------------------------------------------
+	/** @return XXH64 of the blocks sampled as -sample does, or of the whole file if small. */
+	static byte[] sampledDigest (final Path p, final LongAdder read) throws IOException {
+		var d = Hasher.of ("XXH64");
+		try (var c = FileChannel.open (p, StandardOpenOption.READ)) {
+			var starts = sampleStarts (c.size ());
+			if (starts == null) {
+				digest (c, d, 0, Long.MAX_VALUE, read);
+			} else for (long start : starts) {
+				digest (c, d, start, start + config.sampleSize, read);
+			}
+		}
+		return d.digest ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Digest bytes from position to end or end of file. */
+	static void digest (final FileChannel c, final Hasher d, long position, final long end, final LongAdder read)
+		throws IOException {
+		var b = buffers.get () [0];
+		while (position < end && readFully (c, b, position, (int) Math.min (BLOCK_SIZE, end - position), read) > 0) {
+			position += b.remaining ();
+			long start = System.nanoTime ();
+			d.update (b);
+			Stats.compareTime.add (System.nanoTime () - start);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Threads reading a file while the walking thread reads the other one. */
+	static final ExecutorService readers = Executors.newCachedThreadPool (daemon ("reader"));
+
+	static ThreadFactory daemon (final String name) {
+		return r -> {
+			var t = new Thread (r, name);
+			t.setDaemon (true);
+			return t;
+		};
+	}
+
+	//------------------------------------------------------------------------
+	static String hex (final byte[] bytes) {
+		var s = new StringBuilder (bytes.length * 2);
+		for (byte b : bytes) {
+			s.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+		}
+		return s.toString ();
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Digests of files in a folder tree, saved between runs,
+	 * valid as long as the size and last modified time of a file are the same.
+	 * Saved sorted by relative path, each path sharing its prefix with the previous one.
+	 */
+	static final class DigestCache {
+		static final String     NAME        = ".compare-2-folders.cache";
+		static final int        MAGIC       = 0x43324643;   // C2FC
+
+		static final LongAdder  lookups     = new LongAdder ();
+		static final LongAdder  hits        = new LongAdder ();
+		static final LongAdder  stale       = new LongAdder ();
+
+		static final class Entry {
+			final long      size, modified;
+			final byte[]    digest;
+
+			Entry (final long size, final long modified, final byte[] digest) {
+				this.size     = size;
+				this.modified = modified;
+				this.digest   = digest;
+			}
+
+			boolean isValid (final BasicFileAttributes attrs) {
+				return size == attrs.size () && modified == modified (attrs);
+			}
+
+			static long modified (final BasicFileAttributes attrs) {
+				return attrs.lastModifiedTime ().to (TimeUnit.NANOSECONDS);
+			}
+		}
+
+		final Path                  root, file;
+		final Map<String, Entry>    loaded;
+		final Map<String, Entry>    kept = new ConcurrentHashMap<> ();
+
+		private DigestCache (final Path root, final Path file, final Map<String, Entry> loaded) {
+			this.root   = root;
+			this.file   = file;
+			this.loaded = loaded;
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * @return whether a name at the top of a folder is the cache or its temporary file,
+		 * not to compare when caching in the folders compared.
+		 */
+		static boolean isCache (final String name) {
+			return config.cache && config.cacheDir == null && config.replicas == null
+				&& config.manifest == null && config.writeManifest == null && name.startsWith (NAME);
+		}
+
+		//--------------------------------------------------------------------
+		/** Load the cache of a folder tree, or start an empty one if none or unreadable. */
+		static DigestCache open (final Path root) throws IOException {
+			Path file;
+			if (config.cacheDir == null) {
+				file = root.resolve (NAME);
+			} else {
+				Files.createDirectories (config.cacheDir);
+				var key = Hasher.of ("SHA-256");
+				key.update (ByteBuffer.wrap (root.toAbsolutePath ().normalize ().toString ().getBytes (StandardCharsets.UTF_8)));
+				file = config.cacheDir.resolve (hex (Arrays.copyOf (key.digest (), 8)) + ".cache");
+			}
+
+			var loaded = new HashMap<String, Entry> ();
+			if (Files.exists (file)) {
+				try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (file), BLOCK_SIZE))) {
+					if (in.readInt () != MAGIC || ! in.readUTF ().equalsIgnoreCase (config.algorithm ())) {
+						throw new IOException ("not a " + config.algorithm () + " digest cache");
+					}
+					String previous = "";
+					for (int n = in.readInt () ; n > 0 ; n--) {
+						String relative = previous.substring (0, in.readUnsignedShort ()) + in.readUTF ();
+						long size = in.readLong (), modified = in.readLong ();
+						byte[] digest = new byte [in.readUnsignedByte ()];
+						in.readFully (digest);
+						loaded.put (relative, new Entry (size, modified, digest));
+						previous = relative;
+					}
+				} catch (IOException e) {
+					stderr.printf ("%s: %s, rebuilding.%n", file, e.getMessage ());
+					loaded.clear ();
+				}
+			}
+			return new DigestCache (root, file, loaded);
+		}
+
+		//--------------------------------------------------------------------
+		/** Keep the cached digest of a file if still valid. */
+		void keep (final String relative, final BasicFileAttributes attrs) {
+			if (attrs == null) {
+				return;
+			}
+			var entry = loaded.get (relative);
+			if (entry != null && entry.isValid (attrs)) {
+				kept.put (relative, entry);
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return cached digest of a file if still valid, always null if verifying. */
+		byte[] lookup (final String relative, final BasicFileAttributes attrs) {
+			lookups.increment ();
+			var entry = kept.get (relative);
+			if (entry == null || config.cacheVerify) {
+				return null;
+			}
+			hits.increment ();
+			return entry.digest;
+		}
+
+		//--------------------------------------------------------------------
+		/** Cache the digest just read from a file. */
+		void put (final String relative, final BasicFileAttributes attrs, final byte[] digest) {
+			var old = kept.put (relative, new Entry (attrs.size (), Entry.modified (attrs), digest));
+			if (old != null && ! Arrays.equals (old.digest, digest)) {
+				stale.increment ();
+				stderr.printf ("Digest cache stale: %s%n", root.resolve (relative));
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** Save by writing to a temporary file and then replacing. */
+		void save () throws IOException {
+			var entries = new TreeMap<String, Entry> (kept);
+			var temp = file.resolveSibling (file.getFileName () + ".tmp");
+			try (var out = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (temp), BLOCK_SIZE))) {
+				out.writeInt (MAGIC);
+				out.writeUTF (config.algorithm ());
+				out.writeInt (entries.size ());
+				String previous = "";
+				for (var e : entries.entrySet ()) {
+					String relative = e.getKey ();
+					int prefix = 0, most = Math.min (Math.min (previous.length (), relative.length ()), 0xFFFF);
+					while (prefix < most && previous.charAt (prefix) == relative.charAt (prefix)) {
+						prefix++;
+					}
+					out.writeShort (prefix);
+					out.writeUTF (relative.substring (prefix));
+					out.writeLong (e.getValue ().size);
+					out.writeLong (e.getValue ().modified);
+					out.writeByte (e.getValue ().digest.length);
+					out.write (e.getValue ().digest);
+					previous = relative;
+				}
+			}
+			Files.move (temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Compare 3 or more replicas of a folder in one walk.
+	 * Files of the same size in several replicas are read once each, all replicas at the same time,
+	 * and for each path the replicas are grouped by what they have there:
+	 * the largest group is taken as the majority, the others as outliers.
+	 */
+	static final class Replicas {
+		final List<Path>    roots;
+		final int           n;
+		long                count;
+
+		Replicas (final List<Path> roots) {
+			this.roots = roots;
+			this.n     = roots.size ();
+		}
+
+		/** @return label of the i-th replica: A, B, C... */
+		static String label (final int i) {
+			return i < 26 ? String.valueOf ((char) ('A' + i)) : "#" + (i + 1);
+		}
+
+		/** @return header line, or null if none */
+		static String header (final OutputFormat format) {
+			switch (format) {
+			case TEXT: return String.join ("\t", columns (true));
+			case CSV:  return String.join (",",  columns (false));
+			case TSV:  return String.join ("\t", columns (false));
+			default:   return null;
+			}
+		}
+
+		private static String[] columns (final boolean text) {
+			int n = config.replicas.size ();
+			var columns = new String [n + 2];
+			columns[0] = text ? "Path" : "path";
+			for (int i = 0 ; i < n ; i++) {
+				columns[i + 1] = text ? label (i) : label (i).toLowerCase ();
+			}
+			columns[n + 1] = text ? "Outliers" : "outliers";
+			return columns;
+		}
+
+		//--------------------------------------------------------------------
+		/** @return number of paths where the replicas differ. */
+		long compare () throws IOException {
+			var all = new boolean [n];
+			Arrays.fill (all, true);
+			visit ("", all, all);
+			return count;
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * Visit a path in the replicas taking part, those with its parent folder.
+		 * @param in replicas where the path exists
+		 */
+		private void visit (final String relative, final boolean[] taking, final boolean[] in) throws IOException {
+			var cells   = new String [n];
+			var paths   = new Path [n];
+			var folders = new boolean [n];
+			var sizes   = new long [n];
+			var regular = new boolean [n];
+			Arrays.fill (sizes, -1);
+
+			Stats.current = relative;
+			for (int i = 0 ; i < n ; i++) {
+				if (! taking[i]) {
+					continue;
+				} else if (! in[i]) {
+					cells[i] = "-";
+					continue;
+				}
+				Stats.visited.increment ();
+				paths[i] = roots.get (i).resolve (relative);
+				try {
+					var attrs = Walker.stat (paths[i]);
+					folders[i] = attrs.isDirectory () && ! attrs.isSymbolicLink ();
+					if (folders[i]) {
+						cells[i] = "folder";
+					} else {
+						sizes[i]   = attrs.size ();
+						regular[i] = attrs.isRegularFile ();
+						cells[i]   = "size = " + sizes[i];
+						Stats.size.add (regular[i] ? sizes[i] : 0);
+					}
+				} catch (IOException e) {
+					cells[i] = e.getClass ().getName () + " = " + e.getMessage ();
+				}
+			}
+
+			if (config.levelCompare != CompareLevel.SIZE) {
+				// read each file once, all replicas at the same time, unless no other has the same size
+				var fingerprints = new Future<?> [n];
+				for (int i = 0 ; i < n ; i++) {
+					if (regular[i] && isSizeShared (sizes, regular, i)) {
+						Path p = paths[i];
+						var read = i == 0 ? Stats.readA : i == 1 ? Stats.readB : Stats.readOthers;
+						fingerprints[i] = readers.submit (() -> fingerprint (p, read));
+					}
+				}
+				for (int i = 0 ; i < n ; i++) {
+					if (fingerprints[i] != null) {
+						try {
+							cells[i] += ", digest = " + hex ((byte[]) Walker.await (fingerprints[i]));
+						} catch (IOException e) {
+							cells[i] = e.getClass ().getName () + " = " + e.getMessage ();
+						}
+					}
+				}
+			}
+			int subfolders = 0;
+			for (boolean folder : folders) {
+				subfolders += folder ? 1 : 0;
+			}
+			var names = subfolders >= 2 ? list (relative, folders, cells) : null;
+			print (relative, cells);
+
+			if (names != null) {
+				for (var entry : names.entrySet ()) {
+					String name = entry.getKey ();
+					if (config.exclusion.matches (name) || relative.isEmpty () && DigestCache.isCache (name)) {
+						continue;
+					}
+					visit (relative.isEmpty () ? name : relative + File.separator + name, folders, entry.getValue ());
+				}
+			}
+		}
+
+		private static boolean isSizeShared (final long[] sizes, final boolean[] regular, final int i) {
+			for (int j = 0 ; j < sizes.length ; j++) {
+				if (j != i && regular[j] && sizes[j] == sizes[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** @return digest of what -partial, -sample or -full compares. */
+		private static byte[] fingerprint (final Path p, final LongAdder read) throws IOException {
+			if (config.levelCompare == CompareLevel.FULL) {
+				return digest (p, read);
+			} else if (config.levelCompare == CompareLevel.SAMPLE) {
+				return sampledDigest (p, read);
+			}
+			var d = Hasher.of ("XXH64");
+			try (var c = FileChannel.open (p, StandardOpenOption.READ)) {
+				digest (c, d, 0, PARTIAL_COMPARE_SIZE, read);
+			}
+			return d.digest ();
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * Merge the sorted listings of a folder in the replicas having it.
+		 * A replica failing to list it gets the error in its cell, and is left out of the walk inside.
+		 * @return for each name, replicas having it
+		 */
+		private TreeMap<String, boolean[]> list (final String relative, final boolean[] folders, final String[] cells) {
+			var names = new TreeMap<String, boolean[]> ();
+			for (int i = 0 ; i < n ; i++) {
+				if (! folders[i]) {
+					continue;
+				}
+				try {
+					for (String name : Walker.names (roots.get (i).resolve (relative))) {
+						names.computeIfAbsent (name, k -> new boolean [n]) [i] = true;
+					}
+				} catch (IOException e) {
+					cells[i]   = e.getClass ().getName () + " = " + e.getMessage ();
+					folders[i] = false;
+				}
+			}
+			return names;
+		}
+
+		//--------------------------------------------------------------------
+		/** Print the path if the replicas taking part do not have the same there. */
+		private void print (final String relative, final String[] cells) {
+			var groups = new LinkedHashMap<String, List<Integer>> ();
+			for (int i = 0 ; i < n ; i++) {
+				if (cells[i] != null) {
+					groups.computeIfAbsent (cells[i], k -> new ArrayList<> ()).add (i);
+				}
+			}
+			if (groups.size () <= 1) {
+				return;
+			}
+
+			List<Integer> majority = null;
+			boolean tie = false;
+			for (var group : groups.values ()) {
+				if (majority == null || group.size () > majority.size ()) {
+					majority = group;
+					tie      = false;
+				} else if (group.size () == majority.size ()) {
+					tie      = true;
+				}
+			}
+			var outliers = new StringJoiner (",");
+			for (int i = 0 ; i < n ; i++) {
+				if (cells[i] != null && ! majority.contains (i)) {
+					outliers.add (label (i));
+				}
+			}
+
+			var values = new String [n + 2];
+			values[0] = relative;
+			System.arraycopy (cells, 0, values, 1, n);
+			values[n + 1] = tie ? "no majority" : outliers.toString ();
+			if (config.format == OutputFormat.TEXT) {
+				var line = new StringJoiner ("\t");
+				for (String v : values) {
+					line.add (v != null ? v : "");
+				}
+				out.println (line);
+			} else {
+				out.println (config.format.record (columns (false), values));
+			}
+			count++;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * A folder tree saved as a sorted list of entries: relative path, folder or not, size, last modified time,
+	 * and digest of each file if written with -full or -hash.
+	 * Entries are in the order walked, each folder followed by its entries, sorted by name,
+	 * so a live tree can be merge-joined with it in constant memory.
+	 * Paths are separated by / and share their prefix with the previous entry, as in the digest cache.
+	 */
+	static final class Manifest {
+		static final int    MAGIC   = 0x4332464D;   // C2FM
+		static final int    END     = 0, FILE = 1, FOLDER = 2;
+
+		static final class Entry {
+			String      relative;
+			boolean     folder;
+			long        size, modified;
+			byte[]      digest;
+			/** Failure to stat a live entry. */
+			IOException error;
+		}
+
+		//--------------------------------------------------------------------
+		/** Walk a live folder tree in manifest order, sorting each folder on the way. */
+		static final class Tree {
+			final Path                      root;
+			final Deque<Iterator<String>>   names     = new ArrayDeque<> ();
+			final Deque<String>             folders   = new ArrayDeque<> ();
+			/** Folder last returned, to walk into unless skipped. */
+			String                          pending   = "";
+
+			Tree (final Path root) {
+				this.root = root;
+			}
+
+			/** @return next entry, or null if no more. */
+			Entry next () throws IOException {
+				if (pending != null) {
+					names.push (Walker.names (root.resolve (pending)).iterator ());
+					folders.push (pending);
+					pending = null;
+				}
+				while (! names.isEmpty ()) {
+					if (! names.peek ().hasNext ()) {
+						names.pop ();
+						folders.pop ();
+						continue;
+					}
+					String folder = folders.peek (), name = names.peek ().next ();
+					if (config.exclusion.matches (name) || folder.isEmpty () && DigestCache.isCache (name)) {
+						continue;
+					}
+					var entry = new Entry ();
+					entry.relative = folder.isEmpty () ? name : folder + "/" + name;
+
+					Path p = root.resolve (entry.relative);
+					Stats.current = entry.relative;
+					Stats.visited.increment ();
+					try {
+						var attrs = Walker.stat (p);
+						entry.folder   = attrs.isDirectory () && ! attrs.isSymbolicLink ();
+						entry.size     = entry.folder ? 0 : attrs.size ();
+						entry.modified = attrs.lastModifiedTime ().to (TimeUnit.NANOSECONDS);
+						Stats.size.add (attrs.isRegularFile () ? entry.size : 0);
+					} catch (IOException e) {
+						entry.error = e;
+						return entry;
+					}
+					if (entry.folder) {
+						pending = entry.relative;
+					}
+					return entry;
+				}
+				return null;
+			}
+
+			/** Do not walk into the folder last returned. */
+			void skip () {
+				pending = null;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return number of entries written */
+		static long write (final Path root, final Path file) throws IOException {
+			String algorithm = config.levelCompare == CompareLevel.FULL ? config.algorithm () : "";
+			Path self = file.toAbsolutePath ();
+			long count = 0;
+			try (var out = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (file), BLOCK_SIZE))) {
+				out.writeInt (MAGIC);
+				out.writeUTF (algorithm);
+				var tree = new Tree (root);
+				String previous = "";
+				for (Entry entry ; (entry = tree.next ()) != null ;) {
+					Path p = root.resolve (entry.relative);
+					if (p.toAbsolutePath ().equals (self)) {
+						continue;
+					}
+					if (entry.error != null) {
+						stderr.printf ("%s: %s%n", p, entry.error);
+						continue;
+					}
+					byte[] digest = new byte [0];
+					if (! entry.folder && ! algorithm.isEmpty ()) {
+						try {
+							digest = digest (p, Stats.readA);
+						} catch (IOException e) {
+							stderr.printf ("%s: %s%n", p, e.getMessage ());
+						}
+					}
+
+					int prefix = 0, most = Math.min (Math.min (previous.length (), entry.relative.length ()), 0xFFFF);
+					while (prefix < most && previous.charAt (prefix) == entry.relative.charAt (prefix)) {
+						prefix++;
+					}
+					out.writeByte (entry.folder ? FOLDER : FILE);
+					out.writeShort (prefix);
+					out.writeUTF (entry.relative.substring (prefix));
+					out.writeLong (entry.size);
+					out.writeLong (entry.modified);
+					out.writeByte (digest.length);
+					out.write (digest);
+					previous = entry.relative;
+					count++;
+				}
+				out.writeByte (END);
+			}
+			return count;
+		}
+
+		//--------------------------------------------------------------------
+		/** Read a manifest entry by entry. */
+		static final class Reader implements Closeable {
+			final DataInputStream   in;
+			final String            algorithm;
+			String                  previous = "";
+
+			Reader (final Path file) throws IOException {
+				in = new DataInputStream (new BufferedInputStream (Files.newInputStream (file), BLOCK_SIZE));
+				if (in.readInt () != MAGIC) {
+					in.close ();
+					throw new IOException (file + ": not a manifest");
+				}
+				algorithm = in.readUTF ();
+			}
+
+			/** @return next entry, or null if no more. */
+			Entry next () throws IOException {
+				int type = in.readUnsignedByte ();
+				if (type == END) {
+					return null;
+				}
+				var entry = new Entry ();
+				entry.folder   = type == FOLDER;
+				entry.relative = previous.substring (0, in.readUnsignedShort ()) + in.readUTF ();
+				entry.size     = in.readLong ();
+				entry.modified = in.readLong ();
+				entry.digest   = new byte [in.readUnsignedByte ()];
+				in.readFully (entry.digest);
+				previous = entry.relative;
+				return entry;
+			}
+
+			/** @return next entry not inside the folder. */
+			Entry skip (final String folder) throws IOException {
+				Entry entry;
+				while ((entry = next ()) != null && entry.relative.startsWith (folder + "/"));
+				return entry;
+			}
+
+			@Override public void close () throws IOException {
+				in.close ();
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** Merge-join a live tree with a manifest. @return number of differences. */
+		static long compare (final Path root, final Path file) throws IOException {
+			long count = 0;
+			try (var manifest = new Reader (file)) {
+				boolean digests = config.levelCompare != CompareLevel.SIZE && ! manifest.algorithm.isEmpty ();
+				if (config.levelCompare != CompareLevel.SIZE && ! digests) {
+					stderr.println ("No digests in the manifest, comparing sizes and modified times only.");
+				}
+				var tree = new Tree (root);
+				Entry a = tree.next (), b = manifest.next ();
+				while (a != null || b != null) {
+					int c = a == null ? 1 : b == null ? -1 : comparePaths (a.relative, b.relative);
+					String relatives = (c <= 0 ? a : b).relative.replace ("/", File.separator);
+					Diff diff = null;
+
+					if (c <= 0 && a.error != null) {
+						diff = Diff.error (relatives, a.error);
+					} else if (c < 0) {
+						diff = new Diff (a.folder ? relatives + File.separator : relatives, Kind.ONLY_A);
+						diff.folderA = a.folder;
+						diff.sizeA   = a.folder ? -1 : a.size;
+					} else if (c > 0) {
+						diff = new Diff (b.folder ? relatives + File.separator : relatives, Kind.ONLY_B);
+						diff.folderB = b.folder;
+						diff.sizeB   = b.folder ? -1 : b.size;
+					} else if (a.folder != b.folder) {
+						diff = new Diff (relatives, Kind.TYPE);
+						diff.folderA = a.folder;
+						diff.folderB = b.folder;
+					} else if (! a.folder && a.size != b.size) {
+						diff = new Diff (relatives, Kind.SIZE);
+						diff.sizeA = a.size;
+						diff.sizeB = b.size;
+					} else if (! a.folder && digests && b.digest.length > 0) {
+						try {
+							var d = Hasher.of (manifest.algorithm);
+							try (var ch = FileChannel.open (root.resolve (a.relative), StandardOpenOption.READ)) {
+								digest (ch, d, 0, Long.MAX_VALUE, Stats.readA);
+							}
+							byte[] digestA = d.digest ();
+							if (! Arrays.equals (digestA, b.digest)) {
+								diff = new Diff (relatives, Kind.DIGEST);
+								diff.sizeA   = a.size;
+								diff.sizeB   = b.size;
+								diff.digestA = digestA;
+								diff.digestB = b.digest;
+							}
+						} catch (IOException e) {
+							diff = Diff.error (relatives, e);
+						}
+					} else if (! a.folder && a.modified != b.modified) {
+						// no content to compare: a file modified since is told by its time
+						diff = new Diff (relatives, Kind.MODIFIED);
+						diff.sizeA     = a.size;
+						diff.sizeB     = b.size;
+						diff.modifiedA = FileTime.from (a.modified, TimeUnit.NANOSECONDS);
+						diff.modifiedB = FileTime.from (b.modified, TimeUnit.NANOSECONDS);
+					}
+					if (diff != null) {
+						out.println (diff.toRecord (config.format));
+						count++;
+					}
+
+					// a folder only on one side, or against a file, is not walked into
+					boolean skipA = c <= 0 && a.folder && (c < 0 || ! b.folder);
+					boolean skipB = c >= 0 && b.folder && (c > 0 || ! a.folder);
+					if (skipA) {
+						tree.skip ();
+					}
+					if (c <= 0) {
+						a = tree.next ();
+					}
+					if (c >= 0) {
+						b = skipB ? manifest.skip (b.relative) : manifest.next ();
+					}
+				}
+			}
+			return count;
+		}
+
+		//--------------------------------------------------------------------
+		/** Compare relative paths name by name, a folder before its entries. */
+		static int comparePaths (final String a, final String b) {
+			for (int i = 0, j = 0 ;;) {
+				int endA = a.indexOf ('/', i), endB = b.indexOf ('/', j);
+				if (endA < 0) endA = a.length ();
+				if (endB < 0) endB = b.length ();
+				int c = a.substring (i, endA).compareTo (b.substring (j, endB));
+				if (c != 0) {
+					return c;
+				}
+				boolean moreA = endA < a.length (), moreB = endB < b.length ();
+				if (! moreA || ! moreB) {
+					return Boolean.compare (moreA, moreB);
+				}
+				i = endA + 1;
+				j = endB + 1;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Differences in the order walked, held to print once files moved or renamed are found,
+	 * still sorted by path, each move where the file in A would have been.
+	 * Candidates are files only in A or only in B, of the same size on the other side, confirmed by content fingerprints:
+	 * the full digest when comparing full content, a sampled XXH64 otherwise.
+	 * Paths of candidates, and lines of other differences, are kept as UTF-8 bytes in large shared chunks
+	 * instead of a String each.
+	 */
+	static final class Moves {
+		static final int    CHUNK = 16 * MB;
+
+		final List<byte[]>  chunks  = new ArrayList<> ();
+		int                 used    = CHUNK;
+		/** For each file: chunk index << 32 | offset of its path, preceded by the length. */
+		long[]              where   = new long [KB];
+		long[]              sizes   = new long [KB];
+		final BitSet        inB     = new BitSet ();
+		/** Differences other than files only on one side, kept as the line to print. */
+		final BitSet        lines   = new BitSet ();
+		int                 count   = 0;
+
+		//--------------------------------------------------------------------
+		/** Keep a difference: the path of a file only in A or only in B, or else the line to print. */
+		void add (final Diff diff) {
+			boolean candidate = (diff.kind == Kind.ONLY_A || diff.kind == Kind.ONLY_B) && ! diff.folderA && ! diff.folderB;
+			byte[] path = (candidate ? diff.relative : diff.toRecord (config.format)).getBytes (StandardCharsets.UTF_8);
+			if (chunks.isEmpty () || used + 4 + path.length > chunks.get (chunks.size () - 1).length) {
+				chunks.add (new byte [Math.max (CHUNK, 4 + path.length)]);
+				used = 0;
+			}
+			var chunk = ByteBuffer.wrap (chunks.get (chunks.size () - 1), used, 4 + path.length);
+			chunk.putInt (path.length).put (path);
+
+			if (count == where.length) {
+				where = Arrays.copyOf (where, count * 2);
+				sizes = Arrays.copyOf (sizes, count * 2);
+			}
+			where[count] = (long) (chunks.size () - 1) << 32 | used;
+			sizes[count] = ! candidate ? 0 : diff.kind == Kind.ONLY_A ? diff.sizeA : diff.sizeB;
+			inB.set (count, candidate && diff.kind == Kind.ONLY_B);
+			lines.set (count, ! candidate);
+			used += 4 + path.length;
+			count++;
+		}
+
+		//--------------------------------------------------------------------
+		String path (final int i) {
+			var chunk = ByteBuffer.wrap (chunks.get ((int) (where[i] >>> 32)));
+			chunk.position ((int) where[i]);
+			int length = chunk.getInt ();
+			return new String (chunk.array (), chunk.position (), length, StandardCharsets.UTF_8);
+		}
+
+		//--------------------------------------------------------------------
+		/**
+		 * Match files of the same size and fingerprint, then print all differences in order,
+		 * with moves instead of the files in A and B moved.
+		 * @return number of differences printed.
+		 */
+		long print (final Path baseA, final Path baseB) {
+			if (chunks.isEmpty ()) {
+				return 0;
+			}
+			var partner = new int [count];
+			Arrays.fill (partner, -1);
+
+			int[] a = bySize (false), b = bySize (true);
+			for (int i = 0, j = 0 ; i < a.length && j < b.length ;) {
+				long size = sizes[a[i]];
+				if (size < sizes[b[j]]) {
+					i++;
+				} else if (size > sizes[b[j]]) {
+					j++;
+				} else {
+					int i2 = i, j2 = j;
+					while (i2 < a.length && sizes[a[i2]] == size) i2++;
+					while (j2 < b.length && sizes[b[j2]] == size) j2++;
+					match (baseA, Arrays.copyOfRange (a, i, i2), baseB, Arrays.copyOfRange (b, j, j2), partner);
+					i = i2;
+					j = j2;
+				}
+			}
+
+			long printed = 0;
+			for (int i = 0 ; i < count ; i++) {
+				Diff diff;
+				if (lines.get (i)) {
+					out.println (path (i));
+					printed++;
+					continue;
+				} else if (partner[i] < 0 && inB.get (i)) {
+					diff = new Diff (path (i), Kind.ONLY_B);
+					diff.sizeB = sizes[i];
+				} else if (partner[i] < 0) {
+					diff = new Diff (path (i), Kind.ONLY_A);
+					diff.sizeA = sizes[i];
+				} else if (! inB.get (i)) {
+					diff = new Diff (path (i), Kind.MOVED);
+					diff.target = path (partner[i]);
+					diff.sizeA  = diff.sizeB = sizes[i];
+				} else {
+					continue;
+				}
+				out.println (diff.toRecord (config.format));
+				printed++;
+			}
+			return printed;
+		}
+
+		//--------------------------------------------------------------------
+		/** Pair files of the same size in A and B by fingerprint. */
+		private void match (final Path baseA, final int[] a, final Path baseB, final int[] b, final int[] partner) {
+			var candidates = new HashMap<String, Deque<Integer>> ();
+			for (int j : b) {
+				var key = fingerprint (baseB, j);
+				if (key != null) {
+					candidates.computeIfAbsent (key, k -> new ArrayDeque<> ()).add (j);
+				}
+			}
+			for (int i : a) {
+				var key = candidates.isEmpty () ? null : fingerprint (baseA, i);
+				var same = key != null ? candidates.get (key) : null;
+				if (same != null && ! same.isEmpty ()) {
+					int j = same.poll ();
+					partner[i] = j;
+					partner[j] = i;
+				}
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return fingerprint in hex, or null if unreadable. */
+		private String fingerprint (final Path base, final int i) {
+			var p = base.resolve (path (i));
+			var read = inB.get (i) ? Stats.readB : Stats.readA;
+			try {
+				return hex (config.levelCompare == CompareLevel.FULL ? digest (p, read) : sampledDigest (p, read));
+			} catch (IOException e) {
+				stderr.printf ("%s: %s%n", p, e.getMessage ());
+				return null;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return indexes of non-empty files on a side, sorted by size. */
+		private int[] bySize (final boolean sideB) {
+			int n = 0;
+			var sorted = new int [count];
+			for (int i = 0 ; i < count ; i++) {
+				if (inB.get (i) == sideB && sizes[i] > 0) {
+					sorted[n++] = i;
+				}
+			}
+			sorted = Arrays.copyOf (sorted, n);
+
+			// heap sort, without boxing millions of indexes
+			for (int i = n / 2 - 1 ; i >= 0 ; i--) {
+				siftDown (sorted, i, n);
+			}
+			for (int end = n - 1 ; end > 0 ; end--) {
+				int t = sorted[0]; sorted[0] = sorted[end]; sorted[end] = t;
+				siftDown (sorted, 0, end);
+			}
+			return sorted;
+		}
+
+		private void siftDown (final int[] heap, int i, final int n) {
+			for (int child ; (child = 2 * i + 1) < n ; i = child) {
+				if (child + 1 < n && sizes[heap[child + 1]] > sizes[heap[child]]) {
+					child++;
+				}
+				if (sizes[heap[i]] >= sizes[heap[child]]) {
+					return;
+				}
+				int t = heap[i]; heap[i] = heap[child]; heap[child] = t;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Streaming hash function: XXH64, CRC32C, CRC32 or any MessageDigest algorithm. */
+	static abstract class Hasher {
+
+		/** Feed all remaining bytes of the buffer. */
+		abstract void   update (ByteBuffer b);
+		abstract byte[] digest ();
+
+		//--------------------------------------------------------------------
+		static Hasher of (final String algorithm) {
+			switch (algorithm.toUpperCase ()) {
+			case "XXH64":
+			case "XXHASH64": return new XxHash64 ();
+			case "CRC32C":   return new OfChecksum (new java.util.zip.CRC32C ());
+			case "CRC32":    return new OfChecksum (new java.util.zip.CRC32 ());
+			default:
+				try {
+					return new OfMessageDigest (MessageDigest.getInstance (algorithm));
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalArgumentException ("Unknown hash algorithm " + algorithm);
+				}
+			}
+		}
+
+		//--------------------------------------------------------------------
+		static final class OfMessageDigest extends Hasher {
+			final MessageDigest md;
+			OfMessageDigest (final MessageDigest md) { this.md = md; }
+			@Override void   update (final ByteBuffer b) { md.update (b); }
+			@Override byte[] digest () { return md.digest (); }
+		}
+
+		//--------------------------------------------------------------------
+		static final class OfChecksum extends Hasher {
+			final java.util.zip.Checksum checksum;
+			OfChecksum (final java.util.zip.Checksum checksum) { this.checksum = checksum; }
+			@Override void   update (final ByteBuffer b) { checksum.update (b); }
+			@Override byte[] digest () {
+				return ByteBuffer.allocate (4).putInt ((int) checksum.getValue ()).array ();
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** XXH64 with seed 0, digest in big endian as printed by xxhsum. */
+		static final class XxHash64 extends Hasher {
+			static final long P1 = 0x9E3779B185EBCA87L;
+			static final long P2 = 0xC2B2AE3D27D4EB4FL;
+			static final long P3 = 0x165667B19E3779F9L;
+			static final long P4 = 0x85EBCA77C2B2AE63L;
+			static final long P5 = 0x27D4EB2F165667C5L;
+
+			long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1;
+			long total = 0;
+			/** Bytes not yet making up a 32 bytes stripe. */
+			final ByteBuffer rest = ByteBuffer.allocate (32).order (ByteOrder.LITTLE_ENDIAN);
+
+			@Override void update (final ByteBuffer b) {
+				var in = b.slice ().order (ByteOrder.LITTLE_ENDIAN);
+				b.position (b.limit ());
+				total += in.remaining ();
+
+				if (rest.position () > 0) {
+					while (rest.hasRemaining () && in.hasRemaining ()) {
+						rest.put (in.get ());
+					}
+					if (rest.hasRemaining ()) {
+						return;
+					}
+					stripe (rest.flip ());
+					rest.clear ();
+				}
+				while (in.remaining () >= 32) {
+					stripe (in);
+				}
+				rest.put (in);
+			}
+
+			private void stripe (final ByteBuffer in) {
+				v1 = round (v1, in.getLong ());
+				v2 = round (v2, in.getLong ());
+				v3 = round (v3, in.getLong ());
+				v4 = round (v4, in.getLong ());
+			}
+
+			private static long round (long acc, final long input) {
+				acc += input * P2;
+				return Long.rotateLeft (acc, 31) * P1;
+			}
+
+			private static long merge (final long acc, final long v) {
+				return (acc ^ round (0, v)) * P1 + P4;
+			}
+
+			@Override byte[] digest () {
+				long h;
+				if (total >= 32) {
+					h = Long.rotateLeft (v1, 1) + Long.rotateLeft (v2, 7) + Long.rotateLeft (v3, 12) + Long.rotateLeft (v4, 18);
+					h = merge (h, v1);
+					h = merge (h, v2);
+					h = merge (h, v3);
+					h = merge (h, v4);
+				} else {
+					h = P5;
+				}
+				h += total;
+
+				rest.flip ();
+				while (rest.remaining () >= 8) {
+					h ^= round (0, rest.getLong ());
+					h = Long.rotateLeft (h, 27) * P1 + P4;
+				}
+				if (rest.remaining () >= 4) {
+					h ^= (rest.getInt () & 0xFFFFFFFFL) * P1;
+					h = Long.rotateLeft (h, 23) * P2 + P3;
+				}
+				while (rest.hasRemaining ()) {
+					h ^= (rest.get () & 0xFF) * P5;
+					h = Long.rotateLeft (h, 11) * P1;
+				}
+
+				h ^= h >>> 33;
+				h *= P2;
+				h ^= h >>> 29;
+				h *= P3;
+				h ^= h >>> 32;
+				return ByteBuffer.allocate (8).putLong (h).array ();
 			}
 		}
-		return 0;
 	}
 
 }
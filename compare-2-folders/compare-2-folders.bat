@@ -6,7 +6,11 @@ if defined JAVA_HOME (
 ) else (
 	set JAVA=java
 )
+if not "%~1"=="" (
+	%JAVA% Compare2Folders.java %*
+	exit /b
+)
 :forever
-%JAVA% -cp lib\commons-io-2.6.jar Compare2Folders.java %*
+%JAVA% Compare2Folders.java %*
 echo;
 goto forever
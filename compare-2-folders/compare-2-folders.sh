@@ -1 +1 @@
-java -cp lib/commons-io-2.6.jar Compare2Folders.java $*
+java Compare2Folders.java "$@"
@@ -1,9 +1,17 @@
 import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.text.Normalizer;
+import java.time.*;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.regex.*;
 
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.commons.io.IOCase;
@@ -30,17 +38,225 @@ public final class FindCharsetFiles {
 	static final String HR = "--------";
 
 	static Config config = null;
+	static Index  index  = null;
+	static Filter filter = null;
+	/** Matches in all files, when counting only. */
+	static final AtomicLong total = new AtomicLong ();
 	static class Config {
 		Path            where;
-		List<String>    wildcards;
-		String          what;
-		Charset         charset;
+		List<String>    wildcards   = List.of ("*");
+		List<String>    what        = new ArrayList<> ();
+		List<Charset>   charsets    = List.of (StandardCharsets.UTF_8);
+		int             threads     = 1;
+		/** Print files as found by any thread, instead of in the order walked. */
+		boolean         unordered   = false;
+		/** Search what as a regular expression, in text decoded by each character set. */
+		boolean         regex       = false;
+		/** Trigram index of the files to narrow down which to search, kept up to date, or null if none. */
+		Path            index       = null;
+		/** Skip files not in the size range, in bytes, or not last modified in the time range. */
+		long            minSize     = 0;
+		long            maxSize     = Long.MAX_VALUE;
+		Instant         newer       = null;
+		Instant         older       = null;
+		/** Skip files which look binary by the first block, in all character sets. */
+		boolean         skipBinary  = false;
+		/** Lines to print before and after each line found. */
+		int             context     = 0;
+		/** Print only how many found in each file, and in total. */
+		boolean         count       = false;
+		/** Search in any case, and in any normal form NFC or NFKC, or null for the bytes as they are. */
+		boolean         ignoreCase  = false;
+		Normalizer.Form normalize   = null;
 
 		//--------------------------------------------------------------------
 		@Override
 		public String toString () {
-			return String.format ("Searching '%s'%s for '%s' with character set %s...",
-				config.where, config.wildcards, config.what, config.charset);
+			var s = config.regex ?
+				String.format ("Searching '%s'%s for regex '%s' with character sets %s...",
+					config.where, config.wildcards, config.what.get (0), config.charsets) :
+				config.isMulti () ?
+				String.format ("Searching '%s'%s for %s with character sets %s...",
+					config.where, config.wildcards, config.what, config.charsets) :
+				String.format ("Searching '%s'%s for '%s' with character set %s...",
+					config.where, config.wildcards, config.what.get (0), config.charsets.get (0));
+			if (config.isFolded ()) {
+				s += String.format (" (%s)", config.ignoreCase && config.normalize != null ? "ignore case, " + config.normalize :
+					config.ignoreCase ? "ignore case" : config.normalize);
+			}
+			if (config.threads > 1) {
+				s += String.format (" (threads = %d%s)", config.threads, config.unordered ? ", unordered" : "");
+			}
+			return s;
+		}
+
+		/** @return true if searching more than 1 text or character set. */
+		boolean isMulti () {
+			return what.size () > 1 || charsets.size () > 1;
+		}
+
+		/** @return true if searching other bytes than those of the text, for case or normal form. */
+		boolean isFolded () {
+			return ignoreCase || normalize != null;
+		}
+
+		//--------------------------------------------------------------------
+		static Config getInstance (final String... args) throws IOException {
+			if (args.length == 0) {
+				return fromStdIn ();
+			} else if (args.length >= 2) {
+				return fromArgs (args);
+			} else {
+				return die ();
+			}
+		}
+
+		//--------------------------------------------------------------------
+		private static Config die () {
+			stderr.println ("Command line arguments:");
+			stderr.println ("[where] [what] [what 2] ... [-wildcards wildcards (comma seperated)] [-charset names (comma seperated)] [-threads N] [-unordered] [-regex] [-index file]");
+			stderr.println ("[-min-size bytes] [-max-size bytes] (K, M or G) [-newer time] [-older time] (yyyy-MM-dd[THH:mm[:ss]]) [-skip-binary]");
+			stderr.println ("[-context lines] [-count] [-ignore-case] [-normalize NFC|NFKC]");
+			System.exit (1);
+			return null;
+		}
+
+		//--------------------------------------------------------------------
+		/** Get configuration from command line arguments. */
+		private static Config fromArgs (final String... args) {
+			var config = new Config ();
+			String option = null;
+
+			for (String arg1 : args) {
+				if (option != null) {
+					switch (option) {
+					case "wildcards": config.wildcards = List.of (arg1.split (","));  break;
+					case "threads":   config.threads   = parseThreads (arg1);         break;
+					case "index":     config.index     = Path.of (arg1);              break;
+					case "min-size":  config.minSize   = parseSize (arg1, 0);         break;
+					case "max-size":  config.maxSize   = parseSize (arg1, Long.MAX_VALUE); break;
+					case "newer":     config.newer     = parseTime (arg1);            break;
+					case "older":     config.older     = parseTime (arg1);            break;
+					case "context":   config.context   = parseLines (arg1);           break;
+					case "normalize":
+						if (! isContains (arg1, "NFC", "NFKC")) {
+							stderr.printf ("Unknown normal form %s%n", arg1);
+							return die ();
+						}
+						config.normalize = Normalizer.Form.valueOf (arg1.toUpperCase ());
+						break;
+					case "charset":
+						try {
+							config.charsets = parseCharsets (arg1);
+						} catch (IllegalArgumentException e) {
+							stderr.printf ("Unknown character set %s%n", arg1);
+							return die ();
+						}
+						break;
+					}
+					option = null;
+				} else if (isContains (arg1, "-unordered", "--unordered")) {
+					config.unordered = true;
+				} else if (isContains (arg1, "-regex", "--regex")) {
+					config.regex = true;
+				} else if (isContains (arg1, "-skip-binary", "--skip-binary")) {
+					config.skipBinary = true;
+				} else if (isContains (arg1, "-count", "--count")) {
+					config.count = true;
+				} else if (isContains (arg1, "-ignore-case", "--ignore-case")) {
+					config.ignoreCase = true;
+				} else if (isContains (arg1, "-wildcards", "--wildcards", "-charset", "--charset", "-threads", "--threads",
+					"-index", "--index", "-min-size", "--min-size", "-max-size", "--max-size",
+					"-newer", "--newer", "-older", "--older", "-context", "--context", "-normalize", "--normalize")) {
+					option = arg1.replaceFirst ("^-+", "").toLowerCase ();
+				} else if (config.where == null) {
+					config.where = Path.of (arg1);
+				} else if (! arg1.isEmpty ()) {
+					config.what.add (arg1);
+				}
+			}
+			if (config.where == null || config.what.isEmpty ()) {
+				return die ();
+			}
+			if (config.regex && config.what.size () > 1) {
+				stderr.println ("Only 1 regex to search, use | to search any of several.");
+				return die ();
+			}
+			if (config.regex && config.normalize == Normalizer.Form.NFKC) {
+				stderr.println ("Only NFC to normalize with regex.");
+				return die ();
+			}
+			return config;
+		}
+
+		//--------------------------------------------------------------------
+		/** @return character sets named, comma seperated, without duplicates. */
+		private static List<Charset> parseCharsets (final String names) {
+			var charsets = new LinkedHashSet<Charset> ();
+			for (String name : names.split (",")) {
+				charsets.add (Charset.forName (name.trim ()));
+			}
+			return List.copyOf (charsets);
+		}
+
+		//--------------------------------------------------------------------
+		/** @return number of threads, 0 stands for all processors. */
+		private static int parseThreads (final String arg) {
+			try {
+				int n = Integer.parseInt (arg);
+				return n > 0 ? n : Runtime.getRuntime ().availableProcessors ();
+			} catch (NumberFormatException e) {
+				stderr.println ("Argument threads should be a number.");
+				return 1;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return number of lines, not negative. */
+		private static int parseLines (final String arg) {
+			try {
+				return Math.max (0, Integer.parseInt (arg));
+			} catch (NumberFormatException e) {
+				stderr.println ("Argument lines should be a number.");
+				return 0;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return number of bytes, which may end with K, M or G. */
+		private static long parseSize (final String arg, final long defaultSize) {
+			var units = "KMG";
+			var size  = arg.trim ().toUpperCase ();
+			int unit  = size.isEmpty () ? -1 : units.indexOf (size.charAt (size.length () - 1));
+			try {
+				return Long.parseLong (unit < 0 ? size : size.substring (0, size.length () - 1)) << 10 * (unit + 1);
+			} catch (NumberFormatException e) {
+				stderr.printf ("Argument size should be a number, with K, M or G: %s%n", arg);
+				return defaultSize;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		/** @return a date, or date and time, in the local time zone; or null if not parsed. */
+		private static Instant parseTime (final String arg) {
+			try {
+				return arg.contains ("T") ?
+					LocalDateTime.parse (arg).atZone (ZoneId.systemDefault ()).toInstant () :
+					LocalDate.parse (arg).atStartOfDay (ZoneId.systemDefault ()).toInstant ();
+			} catch (DateTimeParseException e) {
+				stderr.printf ("Argument time should be yyyy-MM-dd[THH:mm[:ss]]: %s%n", arg);
+				return null;
+			}
+		}
+
+		//--------------------------------------------------------------------
+		private static boolean isContains (final String content, final String... what) {
+			for (String what1 : what) {
+				if (content.equalsIgnoreCase (what1)) {
+					return true;
+				}
+			}
+			return false;
 		}
 
 		//--------------------------------------------------------------------
@@ -54,13 +270,13 @@ public final class FindCharsetFiles {
 			line = stdinLine ("*"    , "File name wildcards (comma seperated, default to *): ");
 			config.wildcards = List.of (line.split (","));
 			line = stdinLine (""     , "             What to search (plain text, not regex): ");
-			config.what = line;
-			if (config.what.length () == 0) {
+			config.what = List.of (line);
+			if (line.length () == 0) {
 				stdout.println ("Nothing to search. Exit.");
 				System.exit (0);
 			}
-			line = stdinLine ("UTF-8", "             Which character set (default to UTF-8): ");
-			config.charset = Charset.forName (line);
+			line = stdinLine ("UTF-8", "Which character sets (comma seperated, default to UTF-8): ");
+			config.charsets = parseCharsets (line);
 
 			return config;
 		}
@@ -80,13 +296,23 @@ public final class FindCharsetFiles {
 	/** Program entry */
 	public static void main (final String... args) {
 		try {
-			config = Config.fromStdIn ();
+			config = Config.getInstance (args);
 			stdout.println (config.toString ());
 			stdout.println (HR);
 			var n = walkFileTree ();
 			stdout.println (HR);
-			stdout.printf ("Found in %d files.%n", n);
-		} catch (IOException e) {
+			if (config.count) {
+				stdout.printf ("Found %d in %d files.%n", total.get (), n);
+			} else {
+				stdout.printf ("Found in %d files.%n", n);
+			}
+			if (filter.isFiltering ()) {
+				stdout.println (filter.toString ());
+			}
+			if (index != null) {
+				stdout.println (index.toString ());
+			}
+		} catch (IOException | IllegalArgumentException e) {
 			stderr.println (e.getMessage ());
 		}
 	}
@@ -94,70 +320,1726 @@ public final class FindCharsetFiles {
 	//------------------------------------------------------------------------
 	private static int walkFileTree () throws IOException {
 		final var wildcards = new WildcardFileFilter (config.wildcards, IOCase.SYSTEM);
-		final var what      = config.what.getBytes (config.charset);
-		final var linefeed  = "\n".getBytes (config.charset);
+		final var automaton = (config.isMulti () || config.isFolded ()) && ! config.regex ?
+			new Automaton (config.what, config.charsets, config.ignoreCase, config.normalize) : null;
+		final var what      = automaton != null || config.regex ? null : new Searcher (getBytes (config.what.get (0), config.charsets.get (0)));
+		final var linefeed  = getBytes ("\n", config.charsets.get (0));
+		final var regex     = config.regex ? new Regex (config.what.get (0), config.charsets, config.ignoreCase, config.normalize != null) : null;
 		final var cound     = new AtomicInteger ();
+		filter = new Filter (config);
 
-		Files.walkFileTree (config.where, new SimpleFileVisitor<Path>() {
-			final File IGNORED = null;
-			@Override
-			public FileVisitResult visitFile (final Path p, final BasicFileAttributes attrs) throws IOException {
-				if (wildcards.accept (IGNORED, p.toString ())) {
-					cound.addAndGet (isFileContainsBytes (p, what, linefeed));
+		if (config.index != null) {
+			var patterns = new ArrayList<byte[]> ();
+			if (config.isFolded ()) {
+				// bytes of other case or normal form are not known as trigrams
+				patterns.add (new byte [0]);
+			} else if (regex != null) {
+				for (Searcher literal : regex.literals) {
+					patterns.add (literal != null ? literal.what : new byte [0]);
+				}
+			} else {
+				for (String what1 : config.what) {
+					for (Charset charset : config.charsets) {
+						var bytes = encode (what1, charset);
+						patterns.add (bytes != null ? bytes : new byte [0]);
+					}
 				}
-				return FileVisitResult.CONTINUE;
 			}
-		});
+			index = new Index (config.index, patterns);
+		}
 
+		try (var workers = new Workers (config.threads, config.unordered)) {
+			Files.walkFileTree (config.where, new SimpleFileVisitor<Path>() {
+				final File IGNORED = null;
+				@Override
+				public FileVisitResult visitFile (final Path p, final BasicFileAttributes attrs) throws IOException {
+					if (wildcards.accept (IGNORED, p.toString ()) && filter.accept (attrs)) {
+						final var stale = index != null ? index.visit (p, attrs) : Boolean.FALSE;
+						if (stale == null) {
+							return FileVisitResult.CONTINUE;
+						}
+						workers.submit (() -> {
+							if (filter.isBinary (p, attrs)) {
+								return "";
+							}
+							if (stale) {
+								index.add (p, attrs);
+							}
+							var found = new StringBuilder ();
+							cound.addAndGet (regex != null ? isFileMatches (p, regex, found) :
+								automaton != null ? isFileContainsAny (p, automaton, found) :
+								isFileContainsBytes (p, what, linefeed, found));
+							return found;
+						});
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+
+		if (index != null) {
+			index.save (config.where);
+		}
 		return cound.get ();
 	}
 
 	//------------------------------------------------------------------------
-	/** @return 1 if the file contains these bytes; 0 if not. */
-	private static int isFileContainsBytes (final Path where, final byte[] what, final byte[] linefeed) {
+	/**
+	 * Skip files by size and last modified time, before reading,
+	 * and if asked, files which look binary by the first block, before searching.
+	 */
+	static final class Filter {
+		/** Bytes to look at for binary. */
+		static final int BLOCK = 4096;
+
+		final long          minSize, maxSize, newer, older;
+		final boolean       skipBinary;
+		final List<Charset> charsets;
+
+		final AtomicLong    skipped         = new AtomicLong ();
+		final AtomicLong    skippedBytes    = new AtomicLong ();
+		final AtomicLong    binaries        = new AtomicLong ();
+		final AtomicLong    binaryBytes     = new AtomicLong ();
+
+		Filter (final Config config) {
+			minSize    = config.minSize;
+			maxSize    = config.maxSize;
+			newer      = config.newer != null ? config.newer.toEpochMilli () : Long.MIN_VALUE;
+			older      = config.older != null ? config.older.toEpochMilli () : Long.MAX_VALUE;
+			skipBinary = config.skipBinary;
+			charsets   = config.charsets;
+		}
+
+		boolean isFiltering () {
+			return skipBinary || minSize > 0 || maxSize < Long.MAX_VALUE || newer > Long.MIN_VALUE || older < Long.MAX_VALUE;
+		}
+
+		/** @return true if the file is in the size and time ranges. */
+		boolean accept (final BasicFileAttributes attrs) {
+			long size = attrs.size (), modified = attrs.lastModifiedTime ().toMillis ();
+			if (size >= minSize && size <= maxSize && modified >= newer && modified < older) {
+				return true;
+			}
+			skipped.incrementAndGet ();
+			skippedBytes.addAndGet (size);
+			return false;
+		}
+
+		/** @return true if asked to skip binary files, and the first block of the file is not text in any character set. */
+		boolean isBinary (final Path p, final BasicFileAttributes attrs) {
+			if (! skipBinary) {
+				return false;
+			}
+			var block = new byte [BLOCK];
+			int n;
+			try (var in = Files.newInputStream (p)) {
+				n = in.readNBytes (block, 0, BLOCK);
+			} catch (IOException e) {
+				// to be reported by searching
+				return false;
+			}
+			for (Charset charset : charsets) {
+				if (isText (block, n, charset)) {
+					return false;
+				}
+			}
+			binaries.incrementAndGet ();
+			binaryBytes.addAndGet (attrs.size ());
+			return true;
+		}
+
+		/**
+		 * @return true if the bytes decode without error, the last character may be cut off,
+		 * to no NUL, and control characters other than tab, linefeed, return, form feed, backspace and escape
+		 * are no more than 1 in 10 characters.
+		 */
+		static boolean isText (final byte[] block, final int length, final Charset charset) {
+			var chars = CharBuffer.allocate (length + 1);
+			if (charset.newDecoder ().decode (ByteBuffer.wrap (block, 0, length), chars, false).isError ()) {
+				return false;
+			}
+			int n = chars.flip ().remaining (), controls = 0;
+			for (int i = 0 ; i < n ; i++) {
+				char c = chars.get (i);
+				if (c == 0) {
+					return false;
+				} else if (c < ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f' && c != '\b' && c != 0x1B) {
+					controls++;
+				}
+			}
+			return controls * 10 <= n;
+		}
+
+		@Override
+		public String toString () {
+			return String.format ("Skipped %d files of %,d bytes by size or time, %d binary files of %,d bytes.",
+				skipped.get (), skippedBytes.get (), binaries.get (), binaryBytes.get ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Trigram index of files, to skip files without all 3 byte sequences of what to search, whatever the character set.
+	 * A file is indexed again when its size or last modified time changes,
+	 * and the index is written back with files no longer there left out.
+	 * Trigrams are hashed into buckets, a posting of files for each, delta and variable length encoded:
+	 * a file in the posting may still not have the trigram, and is searched to make sure.
+	 *
+	 * <p>
+	 * The file: magic, files, buckets stored, where postings begin;
+	 * each bucket stored, the last file in its posting, and where its posting ends;
+	 * each file with its last modified time and size; and then the postings.
+	 * Only postings of what to search are read, unless files are to add or remove.
+	 */
+	static final class Index {
+		static final int    MAGIC   = 0x46434649;
+		static final int    BITS    = 20;
+		static final int    BUCKETS = 1 << BITS;
+		/** Buckets and files to add to postings at a time, sorted by bucket to add them in order. */
+		static final int    PENDING = 1 << 21;
+		static final int    RADIX   = 10;
+
+		/** A file indexed, under its absolute path. */
+		static final class Entry {
+			final int   id;
+			final long  modified, size;
+			boolean     visited;
+
+			Entry (final int id, final long modified, final long size) {
+				this.id       = id;
+				this.modified = modified;
+				this.size     = size;
+			}
+		}
+
+		/** Buckets of trigrams in a file, and which are set, for each thread. */
+		private static final ThreadLocal<long[]> bits    = ThreadLocal.withInitial (() -> new long [BUCKETS / Long.SIZE]);
+		private static final ThreadLocal<int[]>  buckets = ThreadLocal.withInitial (() -> new int [BUCKETS]);
+
+		final Path                  file;
+		final Map<String, Entry>    entries     = new HashMap<> ();
+		int                         ids         = 0;
+		/** Buckets in the file in ascending order, the last file and where the posting ends for each. */
+		int[]                       stored      = new int [0];
+		int[]                       storedLasts = new int [0];
+		long[]                      storedEnds  = new long [0];
+		long                        data;
+		/** Ids of files which may contain what to search as loaded, or null for all. */
+		final BitSet                candidates;
+
+		/** For each bucket: ids of files in ascending order, as increments in variable length; null until loaded. */
+		byte[][]    postings;
+		int[]       lengths, lasts;
+		/** Buckets and files to add, as bucket << 32 | file. */
+		long[]      pending, sorting;
+		int         pendings;
+
+		final AtomicLong    indexed         = new AtomicLong ();
+		final AtomicLong    indexedBytes    = new AtomicLong ();
+		final AtomicLong    skipped         = new AtomicLong ();
+		final AtomicLong    skippedBytes    = new AtomicLong ();
+		long                loadTime, saveTime, indexSize;
+
+		Index (final Path file, final List<byte[]> patterns) throws IOException {
+			this.file = file;
+			long start = System.nanoTime ();
+			if (! Files.isRegularFile (file)) {
+				candidates = null;
+				return;
+			}
+			try (var in = FileChannel.open (file)) {
+				var header = read (in, 0, 20);
+				if (header.getInt () != MAGIC) {
+					throw new IOException (file + " is not an index.");
+				}
+				ids = header.getInt ();
+				int count = header.getInt ();
+				data = header.getLong ();
+
+				var directory = read (in, 20, count * 16L);
+				stored      = new int [count];
+				storedLasts = new int [count];
+				storedEnds  = new long [count];
+				directory.asIntBuffer ().get (stored);
+				directory.position (count * 4).asIntBuffer ().get (storedLasts);
+				directory.position (count * 8).asLongBuffer ().get (storedEnds);
+
+				var files = read (in, 20 + count * 16L, data - 20 - count * 16L);
+				try (var entries = new DataInputStream (new ByteArrayInputStream (files.array ()))) {
+					for (int id = 0 ; id < ids ; id++) {
+						this.entries.put (entries.readUTF (), new Entry (id, entries.readLong (), entries.readLong ()));
+					}
+				}
+				candidates = candidates (in, patterns);
+			}
+			loadTime = System.nanoTime () - start;
+		}
+
+		private static ByteBuffer read (final FileChannel in, final long position, final long length) throws IOException {
+			var buffer = ByteBuffer.allocate (Math.toIntExact (length));
+			while (buffer.hasRemaining ()) {
+				if (in.read (buffer, position + buffer.position ()) < 0) {
+					throw new EOFException ();
+				}
+			}
+			return buffer.flip ();
+		}
+
+		/** @return ids of files having all trigrams of any pattern, or null if any pattern is too short to tell. */
+		private BitSet candidates (final FileChannel in, final List<byte[]> patterns) throws IOException {
+			var candidates = new BitSet ();
+			for (byte[] pattern : patterns) {
+				if (pattern.length < 3) {
+					return null;
+				}
+				BitSet having = null;
+				for (int i = 2 ; i < pattern.length && (having == null || ! having.isEmpty ()) ; i++) {
+					var files = files (in, bucket ((pattern[i - 2] & 0xFF) << 16 | (pattern[i - 1] & 0xFF) << 8 | pattern[i] & 0xFF));
+					if (having == null) {
+						having = files;
+					} else {
+						having.and (files);
+					}
+				}
+				candidates.or (having);
+			}
+			return candidates;
+		}
+
+		/** @return ids of files in the posting of the bucket. */
+		private BitSet files (final FileChannel in, final int bucket) throws IOException {
+			var files = new BitSet (ids);
+			int k = Arrays.binarySearch (stored, bucket);
+			if (k < 0) {
+				return files;
+			}
+			long start = k > 0 ? storedEnds[k - 1] : 0;
+			var posting = new Posting ();
+			posting.reset (read (in, data + start, storedEnds[k] - start).array (), (int) (storedEnds[k] - start));
+			for (int id ; (id = posting.next ()) >= 0 ;) {
+				files.set (id);
+			}
+			return files;
+		}
+
+		private static int bucket (final int trigram) {
+			return (trigram * 0x9E3779B1) >>> (Integer.SIZE - BITS);
+		}
+
+		/**
+		 * Tell whether to search the file, walking the tree.
+		 * @return true to index and then search it, false to search it, or null to skip it.
+		 */
+		synchronized Boolean visit (final Path p, final BasicFileAttributes attrs) {
+			var entry = entries.get (p.toAbsolutePath ().normalize ().toString ());
+			if (entry == null || entry.modified != attrs.lastModifiedTime ().toMillis () || entry.size != attrs.size ()) {
+				return Boolean.TRUE;
+			}
+			entry.visited = true;
+			if (candidates != null && ! candidates.get (entry.id)) {
+				skipped.incrementAndGet ();
+				skippedBytes.addAndGet (attrs.size ());
+				return null;
+			}
+			return Boolean.FALSE;
+		}
+
+		/** Read the file through the window of this thread, and add it with its trigrams. */
+		void add (final Path p, final BasicFileAttributes attrs) throws IOException {
+			var bits    = Index.bits.get ();
+			var buckets = Index.buckets.get ();
+			int n = 0;
+
+			var window = windows.get ();
+			if (window == null || window.length < CHUNK) {
+				window = new byte [CHUNK];
+				windows.set (window);
+			}
+			try (var in = Files.newInputStream (p)) {
+				int trigram = 0;
+				long count = 0;
+				for (int read ; (read = in.read (window, 0, CHUNK)) >= 0 ; count += read) {
+					int i = 0;
+					for (; i < read && count + i < 2 ; i++) {
+						trigram = trigram << 8 | window[i] & 0xFF;
+					}
+					for (; i < read ; i++) {
+						trigram = trigram << 8 | window[i] & 0xFF;
+						int bucket = bucket (trigram & 0xFFFFFF);
+						if ((bits[bucket >>> 6] & 1L << bucket) == 0) {
+							bits[bucket >>> 6] |= 1L << bucket;
+							buckets[n++] = bucket;
+						}
+					}
+				}
+				indexed.incrementAndGet ();
+				indexedBytes.addAndGet (count);
+			} catch (IOException e) {
+				stderr.printf ("%s: [%s] %s%n", p, e.getClass ().getName (), e.getMessage ());
+				n = -1;
+			} finally {
+				for (int i = 0 ; i < n ; i++) {
+					bits[buckets[i] >>> 6] = 0;
+				}
+			}
+			if (n < 0) {
+				return;
+			}
+
+			synchronized (this) {
+				load ();
+				var entry = new Entry (ids++, attrs.lastModifiedTime ().toMillis (), attrs.size ());
+				entry.visited = true;
+				entries.put (p.toAbsolutePath ().normalize ().toString (), entry);
+				if (pendings + n > PENDING) {
+					flush ();
+				}
+				for (int i = 0 ; i < n ; i++) {
+					pending[pendings++] = (long) buckets[i] << 32 | entry.id;
+				}
+			}
+		}
+
+		/** Load all postings from the file, if not yet. */
+		private void load () throws IOException {
+			if (postings != null) {
+				return;
+			}
+			long start = System.nanoTime ();
+			postings = new byte [BUCKETS][];
+			lengths  = new int [BUCKETS];
+			lasts    = new int [BUCKETS];
+			pending  = new long [PENDING];
+			sorting  = new long [PENDING];
+			if (stored.length > 0) {
+				try (var in = new DataInputStream (new BufferedInputStream (
+					Channels.newInputStream (Files.newByteChannel (file).position (data))))) {
+					for (int k = 0 ; k < stored.length ; k++) {
+						int bucket = stored[k], length = (int) (storedEnds[k] - (k > 0 ? storedEnds[k - 1] : 0));
+						postings[bucket] = new byte [length];
+						lengths[bucket]  = length;
+						lasts[bucket]    = storedLasts[k];
+						in.readFully (postings[bucket]);
+					}
+				}
+			}
+			loadTime += System.nanoTime () - start;
+		}
+
+		/**
+		 * Add pending files to postings, sorted by bucket in passes of radix sort,
+		 * which keep files of each bucket in order, to go through postings in order rather than at random.
+		 */
+		private void flush () {
+			long[] from = pending, to = sorting;
+			for (int shift = Integer.SIZE ; shift < Integer.SIZE + BITS ; shift += RADIX) {
+				var counts = new int [(1 << RADIX) + 1];
+				for (int i = 0 ; i < pendings ; i++) {
+					counts[((int) (from[i] >>> shift) & (1 << RADIX) - 1) + 1]++;
+				}
+				for (int r = 1 ; r < counts.length ; r++) {
+					counts[r] += counts[r - 1];
+				}
+				for (int i = 0 ; i < pendings ; i++) {
+					to[counts[(int) (from[i] >>> shift) & (1 << RADIX) - 1]++] = from[i];
+				}
+				var swap = from;
+				from = to;
+				to   = swap;
+			}
+			for (int i = 0 ; i < pendings ; i++) {
+				append ((int) (from[i] >>> Integer.SIZE), (int) from[i]);
+			}
+			pendings = 0;
+		}
+
+		private void append (final int bucket, final int id) {
+			var posting = postings[bucket];
+			if (posting == null) {
+				posting = postings[bucket] = new byte [8];
+			} else if (lengths[bucket] + 5 > posting.length) {
+				posting = postings[bucket] = Arrays.copyOf (posting, posting.length * 2);
+			}
+			int delta = id - (lengths[bucket] == 0 ? -1 : lasts[bucket]), i = lengths[bucket];
+			for (; delta >= 0x80 ; delta >>>= 7) {
+				posting[i++] = (byte) (delta | 0x80);
+			}
+			posting[i++] = (byte) delta;
+			lengths[bucket] = i;
+			lasts[bucket]   = id;
+		}
+
+		/**
+		 * Write the index back if changed, numbering files again without those no longer there,
+		 * which are those under where not visited and not existing.
+		 */
+		void save (final Path where) throws IOException {
+			long start = System.nanoTime ();
+			var root = where.toAbsolutePath ().normalize ().toString ();
+			var live = new Entry [ids];
+			var paths = new String [ids];
+			for (var i = entries.entrySet ().iterator () ; i.hasNext () ;) {
+				var e = i.next ();
+				var entry = e.getValue ();
+				if (entry.visited || ! Path.of (e.getKey ()).startsWith (root) || Files.exists (Path.of (e.getKey ()))) {
+					live[entry.id]  = entry;
+					paths[entry.id] = e.getKey ();
+				} else {
+					i.remove ();
+				}
+			}
+			if (indexed.get () == 0 && entries.size () == ids) {
+				indexSize = Files.isRegularFile (file) ? Files.size (file) : 0;
+				return;
+			}
+			load ();
+			flush ();
+
+			var renumber = new int [ids];
+			var files = new ByteArrayOutputStream ();
+			try (var out = new DataOutputStream (files)) {
+				for (int id = 0, n = 0 ; id < ids ; id++) {
+					renumber[id] = live[id] != null ? n++ : -1;
+					if (live[id] != null) {
+						out.writeUTF (paths[id]);
+						out.writeLong (live[id].modified);
+						out.writeLong (live[id].size);
+					}
+				}
+			}
+
+			// renumber in place: ids only shrink, and so do their increments
+			var old = new Posting ();
+			int count = 0;
+			for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+				var posting = postings[bucket];
+				old.reset (posting, lengths[bucket]);
+				int length = 0, last = -1;
+				for (int id ; (id = old.next ()) >= 0 ;) {
+					if ((id = renumber[id]) < 0) {
+						continue;
+					}
+					int delta = id - last;
+					for (; delta >= 0x80 ; delta >>>= 7) {
+						posting[length++] = (byte) (delta | 0x80);
+					}
+					posting[length++] = (byte) delta;
+					last = id;
+				}
+				lengths[bucket] = length;
+				lasts[bucket]   = last;
+				count += length > 0 ? 1 : 0;
+			}
+
+			var temp = file.resolveSibling (file.getFileName () + ".tmp");
+			try (var out = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (temp)))) {
+				out.writeInt (MAGIC);
+				out.writeInt (entries.size ());
+				out.writeInt (count);
+				out.writeLong (20 + count * 16L + files.size ());
+				for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+					if (lengths[bucket] > 0) {
+						out.writeInt (bucket);
+					}
+				}
+				for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+					if (lengths[bucket] > 0) {
+						out.writeInt (lasts[bucket]);
+					}
+				}
+				long end = 0;
+				for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+					if (lengths[bucket] > 0) {
+						out.writeLong (end += lengths[bucket]);
+					}
+				}
+				files.writeTo (out);
+				for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+					if (lengths[bucket] > 0) {
+						out.write (postings[bucket], 0, lengths[bucket]);
+					}
+				}
+			}
+			try {
+				Files.move (temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move (temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			indexSize = Files.size (file);
+			saveTime  = System.nanoTime () - start;
+		}
+
+		/** Reads ids out of a posting. */
+		static final class Posting {
+			byte[]  posting;
+			int     length, i, id;
+
+			void reset (final byte[] posting, final int length) {
+				this.posting = posting;
+				this.length  = length;
+				this.i       = 0;
+				this.id      = -1;
+			}
+
+			/** @return the next id, or -1 if no more. */
+			int next () {
+				if (i >= length) {
+					return -1;
+				}
+				int delta = 0;
+				for (int shift = 0 ; ; shift += 7) {
+					byte b = posting[i++];
+					delta |= (b & 0x7F) << shift;
+					if (b >= 0) {
+						return id += delta;
+					}
+				}
+			}
+		}
+
+		@Override
+		public String toString () {
+			return String.format (
+				"Index '%s' of %d files, %,d bytes: loaded in %d ms, saved in %d ms.%n" +
+				"Indexed %d files of %,d bytes, skipped %d files of %,d bytes without reading.",
+				file, entries.size (), indexSize,
+				TimeUnit.NANOSECONDS.toMillis (loadTime), TimeUnit.NANOSECONDS.toMillis (saveTime),
+				indexed.get (), indexedBytes.get (), skipped.get (), skippedBytes.get ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Search files on the walking thread, or on a pool of threads fed through a bounded queue.
+	 * What is found in a file is printed all at once, so lines of different files never mix,
+	 * in the order walked unless unordered.
+	 */
+	static final class Workers implements Closeable {
+		/** Files submitted ahead of the one to print next, for each thread. */
+		static final int            AHEAD = 4;
+		static final Future<CharSequence> END = CompletableFuture.completedFuture ("");
+
+		final ExecutorService                       pool;
+		/** Searches to print in order, or null if unordered. */
+		final BlockingQueue<Future<CharSequence>>   ordered;
+		final Semaphore                             running;
+		final Thread                                printer;
+
+		Workers (final int threads, final boolean unordered) {
+			if (threads <= 1) {
+				pool    = null;
+				ordered = null;
+				running = null;
+				printer = null;
+				return;
+			}
+			pool = Executors.newFixedThreadPool (threads, r -> {
+				var t = new Thread (r, "searcher");
+				t.setDaemon (true);
+				return t;
+			});
+			if (unordered) {
+				ordered = null;
+				running = new Semaphore (threads * AHEAD);
+				printer = null;
+			} else {
+				ordered = new ArrayBlockingQueue<> (threads * AHEAD);
+				running = null;
+				printer = new Thread (this::print, "printer");
+				printer.start ();
+			}
+		}
+
+		/** Search a file, waiting while too many are ahead. */
+		void submit (final Callable<CharSequence> search) throws IOException {
+			try {
+				if (pool == null) {
+					stdout.print (search.call ());
+				} else if (ordered != null) {
+					ordered.put (pool.submit (search));
+				} else {
+					running.acquire ();
+					pool.execute (() -> {
+						try {
+							stdout.print (search.call ());
+						} catch (Exception e) {
+							// as the printer does in order
+							stderr.println (e);
+						} finally {
+							running.release ();
+						}
+					});
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException (e);
+			}
+		}
+
+		/** Print searches in the order submitted. */
+		private void print () {
+			try {
+				for (Future<CharSequence> search ; (search = ordered.take ()) != END ;) {
+					try {
+						stdout.print (search.get ());
+					} catch (ExecutionException e) {
+						stderr.println (e.getCause ());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread ().interrupt ();
+			}
+		}
+
+		/** Wait for all searches to be printed. */
+		@Override public void close () throws IOException {
+			if (pool == null) {
+				return;
+			}
+			try {
+				if (ordered != null) {
+					ordered.put (END);
+					printer.join ();
+				}
+				pool.shutdown ();
+				pool.awaitTermination (Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException (e.getMessage ());
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Bytes read from a file at a time. */
+	static final int CHUNK = 1024 * 1024;
+	/** A window for each thread to read files into, reused for every file. */
+	private static final ThreadLocal<byte[]> windows = new ThreadLocal<> ();
+
+	//------------------------------------------------------------------------
+	/**
+	 * Read the file chunk by chunk through a window of constant size,
+	 * keeping the last bytes of each chunk that may begin a match or a linefeed going on in the next one.
+	 * @param found to append where found
+	 * @return 1 if the file contains these bytes; 0 if not.
+	 */
+	private static int isFileContainsBytes (final Path where, final Searcher what, final byte[] linefeed,
+		final StringBuilder found) {
 		Objects.requireNonNull (where);
 		Objects.requireNonNull (what);
-		if (what.length <= 0) {
-			return 0;
+		int contains = 0;
+		long line = 1, matches = 0;
+		var context = config.context > 0 && ! config.count ? new Context (config.context) : null;
+
+		var window = windows.get ();
+		if (window == null || window.length < CHUNK + what.length () + linefeed.length) {
+			window = new byte [CHUNK + what.length () + linefeed.length];
+			windows.set (window);
 		}
-		int found = 0, line = 1;
+		try (var in = FileChannel.open (where)) {
+			// offset in the file of the window; bytes in the window; where to search from; lines counted up to
+			var buffer = ByteBuffer.wrap (window);
+			long base = 0;
+			int end = 0, offset = 0, counted = 0;
+			for (boolean eof = false ; ! eof ;) {
+				int n = in.read (buffer.limit (window.length).position (end));
+				if (n < 0) {
+					eof = true;
+				} else if ((end += n) < window.length) {
+					continue;
+				}
 
+				for (; (offset = what.indexOf (window, offset, end)) >= 0 ; offset = counted) {
+					contains = 1;
+					if (config.count) {
+						matches++;
+						counted = offset + what.length ();
+						continue;
+					}
+					line += context != null ?
+						context.count (window, counted, offset, base, linefeed) : countLines (window, counted, offset, linefeed);
+					counted = offset + what.length ();
+					found.append (String.format ("%s:\tLine %d Offset %d%n", where, line, base + counted));
+					if (context != null) {
+						context.append (found, in, window, base, end, linefeed, config.charsets.get (0));
+					}
+					spill (found);
+				}
+				if (eof) {
+					break;
+				}
+
+				// keep what may begin a match, or a linefeed going on after it
+				int keep = Math.max (counted, end - what.length () + 1);
+				for (int i = Math.max (counted, keep - linefeed.length + 1) ; i < keep ; i++) {
+					int length = Math.min (linefeed.length, end - i);
+					if (Arrays.equals (window, i, i + length, linefeed, 0, length)) {
+						keep = i;
+						break;
+					}
+				}
+				if (! config.count) {
+					line += context != null ?
+						context.count (window, counted, keep, base, linefeed) : countLines (window, counted, keep, linefeed);
+				}
+				System.arraycopy (window, keep, window, 0, end - keep);
+				base   += keep;
+				end    -= keep;
+				offset  = 0;
+				counted = Math.max (counted, keep) - keep;
+			}
+
+		} catch (IOException e) {
+			stderr.printf ("%s: [%s] %s%n", where, e.getClass ().getName (), e.getMessage ());
+		}
+		appendCount (found, where, matches);
+		return contains;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Search all texts in all character sets in one read of the file, in any case or normal form if asked,
+	 * counting lines of each character set on the way.
+	 * @param found to append where found, which text and character set
+	 * @return 1 if the file contains any of them; 0 if not.
+	 */
+	private static int isFileContainsAny (final Path where, final Automaton automaton, final StringBuilder found) {
+		int contains = 0;
+		long matches = 0;
+		var lines    = new long [config.charsets.size ()];
+		var contexts = config.context > 0 && ! config.count ? new Context [lines.length] : null;
+		for (int c = 0 ; contexts != null && c < lines.length ; c++) {
+			contexts[c] = new Context (config.context);
+		}
+
+		var window = windows.get ();
+		if (window == null || window.length < CHUNK) {
+			window = new byte [CHUNK];
+			windows.set (window);
+		}
+		try (var in = FileChannel.open (where)) {
+			final int[] delta = automaton.delta, output = automaton.output;
+			final int[][] hits = automaton.hits;
+			var buffer = ByteBuffer.wrap (window, 0, CHUNK);
+			long base = 0;
+			int state = 0;
+			for (int n ; (n = in.read (buffer.clear ().limit (CHUNK))) >= 0 ; base += n) {
+				for (int i = 0 ; i < n ; i++) {
+					state = delta[state << 8 | window[i] & 0xFF];
+					// states ending any pattern are few
+					if (output[state] > 0) {
+						for (int hit : hits[state]) {
+							if (hit < 0) {
+								lines[-1 - hit]++;
+								if (contexts != null) {
+									contexts[-1 - hit].next (base + i + 1);
+								}
+								continue;
+							}
+							int w = hit / lines.length, c = hit % lines.length;
+							contains = 1;
+							if (config.count) {
+								matches++;
+								continue;
+							}
+							found.append (config.isMulti () ?
+								String.format ("%s:\tLine %d Offset %d\t%s\t%s%n",
+									where, lines[c] + 1, base + i + 1, config.what.get (w), config.charsets.get (c)) :
+								String.format ("%s:\tLine %d Offset %d%n", where, lines[c] + 1, base + i + 1));
+							if (contexts != null) {
+								contexts[c].append (found, in, window, base, n, automaton.linefeeds[c], config.charsets.get (c));
+							}
+							spill (found);
+						}
+					}
+				}
+			}
+
+		} catch (IOException e) {
+			stderr.printf ("%s: [%s] %s%n", where, e.getClass ().getName (), e.getMessage ());
+		}
+		appendCount (found, where, matches);
+		return contains;
+	}
+
+	//------------------------------------------------------------------------
+	/** Characters decoded from a file at a time, for each thread. */
+	private static final ThreadLocal<CharBuffer> texts = ThreadLocal.withInitial (() -> CharBuffer.allocate (CHUNK));
+
+	//------------------------------------------------------------------------
+	/**
+	 * Decode the file in each character set through a window of constant size and match the regex,
+	 * unless the file has not the literal every match begins with.
+	 * Only whole lines are matched in a window, the rest is kept for the next one,
+	 * so a match spanning lines is found only within a window, and a line longer than the window may be split.
+	 * With context, matches in the last lines are left to the next window too, to have lines after them,
+	 * and the lines before are kept.
+	 * @param found to append where found, at which line and column
+	 * @return 1 if the file matches in any character set; 0 if not.
+	 */
+	private static int isFileMatches (final Path where, final Regex regex, final StringBuilder found) {
+		int contains = 0;
+		long matches = 0;
+		var window = windows.get ();
+		if (window == null || window.length < CHUNK + regex.longest) {
+			window = new byte [CHUNK + regex.longest];
+			windows.set (window);
+		}
+
+		for (int c = 0 ; c < config.charsets.size () ; c++) {
+			var charset = config.charsets.get (c);
+			var literal = regex.literals.get (c);
+			var bytes   = ByteBuffer.wrap (window);
+			var chars   = texts.get ();
+			var text    = chars.array ();
+			var decoder = charset.newDecoder ()
+				.onMalformedInput (CodingErrorAction.REPLACE)
+				.onUnmappableCharacter (CodingErrorAction.REPLACE);
+			var matcher = regex.pattern.matcher (chars);
+			chars.clear ();
+
+			try {
+				if (literal != null && ! isFileContainsBytes (where, literal, bytes)) {
+					continue;
+				}
+				bytes.clear ();
+				var context = config.context > 0 && ! config.count ? new Context (config.context) : null;
+				try (var in = Files.newByteChannel (where)) {
+					// chars in the file before the window; the line going on and where it began; chars kept before to match from
+					long base = 0, line = 1, lineStart = 0;
+					int from = 0;
+					for (boolean eof = false, done = false ; ! done ;) {
+						if (! eof) {
+							eof = in.read (bytes) < 0;
+							bytes.flip ();
+							var result = decoder.decode (bytes, chars, eof);
+							bytes.compact ();
+							if (result.isUnderflow () && ! eof) {
+								continue;
+							}
+						} else {
+							bytes.flip ();
+							var result = decoder.decode (bytes, chars, true);
+							bytes.compact ();
+							done = result.isUnderflow () && decoder.flush (chars).isUnderflow ();
+						}
+						if (eof && ! done && chars.hasRemaining ()) {
+							continue;
+						}
+
+						// the window is full, or all decoded: match up to the last linefeed unless all decoded
+						int end = chars.position (), cut = end, counted = from;
+						if (! done) {
+							while (cut > from && text[cut - 1] != '\n') {
+								cut--;
+							}
+							if (context != null) {
+								int back = cut;
+								for (int k = 0 ; k < config.context && back > from ; k++) {
+									for (back-- ; back > from && text[back - 1] != '\n' ; back--);
+								}
+								cut = back > from ? back : cut;
+							}
+							if (cut <= from) {
+								cut = end;
+							}
+						}
+						chars.flip ();
+						matcher.reset (chars).region (from, cut).useTransparentBounds (true).useAnchoringBounds (false);
+						while (matcher.find ()) {
+							int start = matcher.start ();
+							if (start >= cut && ! done) {
+								break;
+							}
+							contains = 1;
+							if (config.count) {
+								matches++;
+								continue;
+							}
+							for (; counted < start ; counted++) {
+								if (text[counted] == '\n') {
+									line++;
+									lineStart = base + counted + 1;
+									if (context != null) {
+										context.next (lineStart);
+									}
+								}
+							}
+							found.append (config.charsets.size () > 1 ?
+								String.format ("%s:\tLine %d Column %d\t%s%n", where, line, base + start - lineStart + 1, charset) :
+								String.format ("%s:\tLine %d Column %d%n", where, line, base + start - lineStart + 1));
+							if (context != null) {
+								context.append (found, text, base, end);
+							}
+							spill (found);
+						}
+						for (; counted < cut && ! config.count ; counted++) {
+							if (text[counted] == '\n') {
+								line++;
+								lineStart = base + counted + 1;
+								if (context != null) {
+									context.next (lineStart);
+								}
+							}
+						}
+
+						// keep lines before for context, unless too long
+						int keep = cut;
+						if (context != null && context.first () >= base && cut - (context.first () - base) <= CHUNK / 2) {
+							keep = (int) (context.first () - base);
+						}
+						chars.position (keep);
+						chars.compact ();
+						base += keep;
+						from  = cut - keep;
+					}
+				}
+
+			} catch (IOException e) {
+				stderr.printf ("%s: [%s] %s%n", where, e.getClass ().getName (), e.getMessage ());
+				break;
+			}
+		}
+		appendCount (found, where, matches);
+		return contains;
+	}
+
+	//------------------------------------------------------------------------
+	/** Characters found to print at a time, when searching on the walking thread. */
+	static final int SPILL = 64 * 1024;
+
+	/**
+	 * Print what is found so far, when searching on the walking thread,
+	 * for a file found many times not to pile up in memory.
+	 */
+	private static void spill (final StringBuilder found) {
+		if (config.threads <= 1 && found.length () >= SPILL) {
+			stdout.print (found);
+			found.setLength (0);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Append how many matches in the file if any, and add them to the total, when counting only. */
+	private static void appendCount (final StringBuilder found, final Path where, final long matches) {
+		if (matches > 0) {
+			found.append (String.format ("%s:\t%d%n", where, matches));
+			total.addAndGet (matches);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Lines before and after a match, by a ring of where recent lines start kept while counting lines,
+	 * taken out of the window, or read from the file where not there, only these lines.
+	 */
+	static final class Context {
+		/** Most bytes or characters of lines around a match. */
+		static final int MAX = 64 * 1024;
+
+		final int       lines;
+		/** Where recent lines start: line n at n % length, as offset in the file, or of characters decoded. */
+		final long[]    starts;
+		/** The line counted up to. */
+		long            line = 1;
+
+		Context (final int lines) {
+			this.lines  = lines;
+			this.starts = new long [lines + 1];
+		}
+
+		/** Count a line starting at the offset. */
+		void next (final long start) {
+			starts[(int) (++line % starts.length)] = start;
+		}
+
+		/** @return number of linefeeds in content from start to end, not overlapping, keeping where lines start. */
+		int count (final byte[] content, int start, final int end, final long base, final byte[] linefeed) {
+			int lines = 0;
+			while ((start = Searcher.indexOf (content, start, end, linefeed, 0)) >= 0) {
+				start += linefeed.length;
+				next (base + start);
+				lines++;
+			}
+			return lines;
+		}
+
+		/** @return number of lines to print before the line counted up to. */
+		int before () {
+			return (int) Math.min (lines, line - 1);
+		}
+
+		/** @return where the first line to print starts. */
+		long first () {
+			return starts[(int) ((line - before ()) % starts.length)];
+		}
+
+		/** Append lines around the line counted up to, out of the window from base to end, or else read from the file. */
+		void append (final StringBuilder found, final FileChannel in, final byte[] window, final long base, final int end,
+			final byte[] linefeed, final Charset charset) throws IOException {
+			int before = before (), needed = before + 1 + lines;
+			var text = new byte [Math.min (MAX, 4096)];
+			int length = 0, scanned = 0, ends = 0;
+			for (long at = first () ; ends < needed && length < MAX ;) {
+				if (length == text.length) {
+					text = Arrays.copyOf (text, Math.min (MAX, text.length * 2));
+				}
+				int n;
+				if (at >= base && at < base + end) {
+					n = Math.min (end - (int) (at - base), text.length - length);
+					System.arraycopy (window, (int) (at - base), text, length, n);
+				} else if ((n = in.read (ByteBuffer.wrap (text, length, text.length - length), at)) <= 0) {
+					break;
+				}
+				length += n;
+				at     += n;
+				for (int i ; ends < needed && (i = Searcher.indexOf (text, scanned, length, linefeed, 0)) >= 0 ; ends++) {
+					scanned = i + linefeed.length;
+				}
+			}
+			append (found, new String (text, 0, ends < needed ? length : scanned, charset), line - before);
+		}
+
+		/** Append lines around the line counted up to, out of characters decoded from base to end. */
+		void append (final StringBuilder found, final char[] text, final long base, final int end) {
+			int before = before ();
+			while (before > 0 && starts[(int) ((line - before) % starts.length)] < base) {
+				before--;
+			}
+			int from = (int) (starts[(int) ((line - before) % starts.length)] - base), to = from;
+			for (int ends = 0, needed = before + 1 + lines ; to < end && to - from < MAX && ends < needed ; to++) {
+				ends += text[to] == '\n' ? 1 : 0;
+			}
+			append (found, new String (text, from, to - from), line - before);
+		}
+
+		/** Append lines of the text numbered from the first, marking the line counted up to. */
+		private void append (final StringBuilder found, final String text, long first) {
+			var texts = text.split ("\n", -1);
+			int n = text.endsWith ("\n") ? texts.length - 1 : texts.length;
+			for (int i = 0 ; i < n ; i++, first++) {
+				var text1 = texts[i].endsWith ("\r") ? texts[i].substring (0, texts[i].length () - 1) : texts[i];
+				found.append (String.format ("\t%d%s\t%s%n", first, first == line ? ":" : "-", text1));
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Tell whether the file has the bytes, reading it through the window,
+	 * and keeping the last bytes of each chunk that may begin a match in the next one.
+	 */
+	private static boolean isFileContainsBytes (final Path where, final Searcher what, final ByteBuffer window)
+		throws IOException {
+		window.clear ();
+		try (var in = Files.newByteChannel (where)) {
+			while (in.read (window) >= 0) {
+				if (window.hasRemaining ()) {
+					continue;
+				}
+				if (what.indexOf (window.array (), 0, window.position ()) >= 0) {
+					return true;
+				}
+				window.position (window.position () - what.length () + 1);
+				window.compact ();
+			}
+			return what.indexOf (window.array (), 0, window.position ()) >= 0;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * @return bytes of the text in the character set as found in files, that is without the byte order mark
+	 * UTF-16 and others write first, or null if the character set cannot encode the text.
+	 */
+	static byte[] encode (final String text, final Charset charset) {
+		if (! charset.canEncode ()) {
+			return null;
+		}
+		try {
+			var bytes = bytes (charset.newEncoder ().encode (CharBuffer.wrap (text)));
+			var mark  = mark (charset);
+			return bytes.length >= mark.length && Arrays.equals (bytes, 0, mark.length, mark, 0, mark.length) ?
+				Arrays.copyOfRange (bytes, mark.length, bytes.length) : bytes;
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+
+	/** @return the byte order mark the character set writes first, as what the first character takes more than the second. */
+	private static byte[] mark (final Charset charset) {
 		try {
-			byte[] content = Files.readAllBytes (where);
-			for (int offset = 0 ; offset < content.length ;) {
-				if (content[offset] == what[0]) {
-					if (isContains (content, what, offset)) {
-						found = 1;
-						offset += what.length;
-						stdout.printf ("%s:\tLine %d Offset %d%n", where, line, offset);
+			var one = bytes (charset.newEncoder ().encode (CharBuffer.wrap ("a")));
+			int n = 2 * one.length - bytes (charset.newEncoder ().encode (CharBuffer.wrap ("aa"))).length;
+			return Arrays.copyOf (one, Math.max (n, 0));
+		} catch (CharacterCodingException e) {
+			return new byte [0];
+		}
+	}
+
+	/** @return bytes of the text without a byte order mark, characters the character set cannot encode replaced. */
+	static byte[] getBytes (final String text, final Charset charset) {
+		var bytes = encode (text, charset);
+		return bytes != null ? bytes : text.getBytes (charset);
+	}
+
+	/**
+	 * @return whether the character set takes the byte order from a byte order mark read first, as UTF-16 and UTF-32 do,
+	 * so that the bytes of a text in files are not known ahead.
+	 */
+	static boolean isMarked (final Charset charset) {
+		for (var orders : List.of (List.of ("UTF-16BE", "UTF-16LE"), List.of ("UTF-32BE", "UTF-32LE"))) {
+			int marked = 0;
+			for (String order : orders) {
+				try {
+					var bytes = ByteBuffer.wrap ("\uFEFFa".getBytes (Charset.forName (order)));
+					marked += charset.newDecoder ().decode (bytes).toString ().equals ("a") ? 1 : 0;
+				} catch (CharacterCodingException e) {
+					// not of this width
+				}
+			}
+			if (marked == orders.size ()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] bytes (final ByteBuffer buffer) {
+		var bytes = new byte [buffer.remaining ()];
+		buffer.get (bytes);
+		return bytes;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * A regular expression with ^ and $ matching at each line, in any case or canonical form if asked,
+	 * and the literal every match begins with, as bytes in each character set to find before decoding,
+	 * unless in any case or form.
+	 */
+	static final class Regex {
+		/** Literals shorter than this are too common to tell files apart. */
+		static final int    LITERAL = 3;
+
+		final Pattern           pattern;
+		/** For each character set, the literal every match begins with, or null if none. */
+		final List<Searcher>    literals = new ArrayList<> ();
+		/** Length of the longest literal in bytes. */
+		final int               longest;
+
+		Regex (final String regex, final List<Charset> charsets, final boolean ignoreCase, final boolean canonical) {
+			pattern = Pattern.compile (regex, Pattern.MULTILINE
+				| (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0) | (canonical ? Pattern.CANON_EQ : 0));
+			var prefix  = ignoreCase || canonical ? "" : literal (regex);
+			int longest = 0;
+			for (Charset charset : charsets) {
+				var bytes = isMarked (charset) ? null : encode (prefix, charset);
+				if (bytes != null && bytes.length >= LITERAL) {
+					literals.add (new Searcher (bytes));
+					longest = Math.max (longest, bytes.length);
+				} else {
+					literals.add (null);
+				}
+			}
+			this.longest = longest;
+		}
+
+		/** @return the literal text every match of the regex begins with, may be empty. */
+		static String literal (final String regex) {
+			final int n = regex.length ();
+			// any of several alternatives
+			boolean inClass = false;
+			int depth = 0;
+			for (int i = 0 ; i < n ; i++) {
+				char c = regex.charAt (i);
+				if (c == '\\') {
+					if (i + 1 < n && regex.charAt (i + 1) == 'Q') {
+						int e = regex.indexOf ("\\E", i + 2);
+						i = e < 0 ? n : e + 1;
 					} else {
-						 offset++;
+						i++;
 					}
-				} else if (isContains (content, linefeed, offset)) {
-					line++;
-					offset += linefeed.length;
+				} else if (inClass) {
+					inClass = c != ']';
+				} else if (c == '[') {
+					inClass = true;
+				} else if (c == '(') {
+					depth++;
+				} else if (c == ')') {
+					depth--;
+				} else if (c == '|' && depth == 0) {
+					return "";
+				}
+			}
+
+			var literal = new StringBuilder ();
+			for (int i = regex.startsWith ("^") ? 1 : 0 ; i < n ;) {
+				char c = regex.charAt (i), next;
+				if (c == '\\') {
+					// only escaped punctuation is literal, letters and digits are classes, backreferences and so on
+					if (i + 1 >= n || Character.isLetterOrDigit (next = regex.charAt (i + 1))) {
+						break;
+					}
+					i += 2;
+				} else if (".[](){}*+?^$|".indexOf (c) >= 0) {
+					break;
 				} else {
-					 offset++;
+					next = c;
+					i++;
+				}
+				if (i < n && "?*{".indexOf (regex.charAt (i)) >= 0) {
+					// optional: drop it, and the first half of a surrogate pair
+					int last = literal.length () - 1;
+					if (last >= 0 && Character.isHighSurrogate (literal.charAt (last))) {
+						literal.setLength (last);
+					}
+					break;
+				}
+				literal.append (next);
+				if (i < n && regex.charAt (i) == '+') {
+					break;
 				}
 			}
+			return literal.toString ();
+		}
+	}
 
-		} catch (IOException e) {
-			stderr.printf ("%s: [%s] %s%n", where, e.getClass ().getName (), e.getMessage ());
+	//------------------------------------------------------------------------
+	/**
+	 * Automaton over the bytes of each text in each character set,
+	 * and of the linefeed in each character set, as a table of 256 next states for each state.
+	 * Each text may be matched by several byte sequences between positions in it, for case and normal forms:
+	 * these make a nondeterministic automaton, turned into a deterministic one by the sets of its states
+	 * that can be reached by the bytes read, which always have the start.
+	 * With a single way to match each text, this is the Aho-Corasick automaton.
+	 */
+	static final class Automaton {
+		/** Most states, for the table of next states to stay within 64M bytes. */
+		static final int    MAX_STATES = 1 << 16;
+
+		/** Next state of each state and byte, at state * 256 + byte. */
+		final int[]     delta;
+		/** The state itself if it ends any pattern, or 0 if none. */
+		final int[]     output;
+		/** For each state ending patterns: text * character sets + character set, or -1 - character set for a linefeed. */
+		final int[][]   hits;
+		/** Linefeed in each character set. */
+		final byte[][]  linefeeds;
+
+		Automaton (final List<String> texts, final List<Charset> charsets, final boolean ignoreCase, final Normalizer.Form form) {
+			// nondeterministic: moves of each state as byte << 24 | next state, hits of each state
+			var moves = new ArrayList<int[]> ();
+			var ends  = new ArrayList<int[]> ();
+			moves.add (new int [0]);
+			ends.add (null);
+			var ways = new Ways (texts, ignoreCase, form);
+			linefeeds = new byte [charsets.size ()][];
+			for (int c = 0 ; c < charsets.size () ; c++) {
+				linefeeds[c] = getBytes ("\n", charsets.get (c));
+				for (int w = 0 ; w < texts.size () ; w++) {
+					add (moves, ends, ways.of (w, charsets.get (c)), w * charsets.size () + c);
+				}
+				add (moves, ends, List.of (List.of (Ways.way (0, linefeeds[c]))), -1 - c);
+			}
+
+			// deterministic: breadth first from the start alone
+			var states = new ArrayList<int[]> ();
+			var ids    = new HashMap<States, Integer> ();
+			var rows   = new ArrayList<int[]> ();
+			states.add (new int [] {0});
+			ids.put (new States (states.get (0)), 0);
+			var next   = new int [256][];
+			var counts = new int [256];
+			for (int s = 0 ; s < states.size () ; s++) {
+				Arrays.fill (counts, 0);
+				for (int from : states.get (s)) {
+					for (int move : moves.get (from)) {
+						int b = move >>> 24;
+						if (next[b] == null || counts[b] == next[b].length) {
+							next[b] = next[b] == null ? new int [4] : Arrays.copyOf (next[b], counts[b] * 2);
+						}
+						next[b][counts[b]++] = move & 0xFFFFFF;
+					}
+				}
+				var row = new int [256];
+				for (int b = 0 ; b < 256 ; b++) {
+					var to = new int [counts[b] + 1];
+					System.arraycopy (next[b] != null ? next[b] : to, 0, to, 1, counts[b]);
+					Arrays.sort (to);
+					int n = 1;
+					for (int i = 1 ; i < to.length ; i++) {
+						if (to[i] != to[n - 1]) {
+							to[n++] = to[i];
+						}
+					}
+					var key = new States (Arrays.copyOf (to, n));
+					var id  = ids.get (key);
+					if (id == null) {
+						if (states.size () >= MAX_STATES) {
+							throw new IllegalArgumentException ("Too many ways to match, search fewer texts or character sets.");
+						}
+						id = states.size ();
+						ids.put (key, id);
+						states.add (key.states);
+					}
+					row[b] = id;
+				}
+				rows.add (row);
+			}
+
+			delta  = new int [states.size () << 8];
+			output = new int [states.size ()];
+			hits   = new int [states.size ()][];
+			for (int s = 0 ; s < states.size () ; s++) {
+				System.arraycopy (rows.get (s), 0, delta, s << 8, 256);
+				int[] union = null;
+				for (int from : states.get (s)) {
+					var end = ends.get (from);
+					if (end != null) {
+						union = union == null ? end.clone () : concat (union, end);
+					}
+				}
+				hits[s]   = union;
+				output[s] = union != null ? s : 0;
+			}
+		}
+
+		/** Add states for each way between positions of a text, the last position ending it. */
+		private static void add (final List<int[]> moves, final List<int[]> ends, final List<List<byte[]>> ways, final int hit) {
+			if (ways.isEmpty ()) {
+				return;
+			}
+			// state of each position, the first one is the start
+			var positions = new int [ways.size () + 1];
+			for (int i = 1 ; i < positions.length ; i++) {
+				positions[i] = moves.size ();
+				moves.add (new int [0]);
+				ends.add (null);
+			}
+			for (int i = 0 ; i < ways.size () ; i++) {
+				for (byte[] way : ways.get (i)) {
+					// ways from position i to i + 1 + way[0], then the bytes
+					int to = positions[i + 1 + (way[0] & 0xFF)], s = positions[i];
+					for (int k = 1 ; k < way.length ; k++) {
+						int t = k == way.length - 1 ? to : moves.size ();
+						if (t != to) {
+							moves.add (new int [0]);
+							ends.add (null);
+						}
+						moves.set (s, concat (moves.get (s), new int [] {(way[k] & 0xFF) << 24 | t}));
+						s = t;
+					}
+				}
+			}
+			int last = positions[positions.length - 1];
+			ends.set (last, ends.get (last) == null ? new int [] {hit} : concat (ends.get (last), new int [] {hit}));
+		}
+
+		private static int[] concat (final int[] a, final int[] b) {
+			var c = Arrays.copyOf (a, a.length + b.length);
+			System.arraycopy (b, 0, c, a.length, b.length);
+			return c;
+		}
+
+		/** Sorted states of the nondeterministic automaton, as a key. */
+		static final class States {
+			final int[] states;
+
+			States (final int[] states) {
+				this.states = states;
+			}
+
+			@Override public int hashCode () {
+				return Arrays.hashCode (states);
+			}
+
+			@Override public boolean equals (final Object o) {
+				return o instanceof States && Arrays.equals (states, ((States) o).states);
+			}
 		}
-		return found;
 	}
 
 	//------------------------------------------------------------------------
-	private static boolean isContains (final byte[] content, final byte[] what, final int start) {
-		if (content.length < start + what.length) {
-			return false;
+	/**
+	 * Ways to match each text: from each position of it, text in other case or normal form going some positions on.
+	 * Texts are taken in the normal form asked, by code point.
+	 * In another case is any code point of the same upper case then lower case, such as K, k and Kelvin sign.
+	 * In another normal form is the canonical decomposition, or any code point with the same normal form,
+	 * such as the ligature fi for f and i in NFKC.
+	 */
+	static final class Ways {
+		final List<int[]>               texts       = new ArrayList<> ();
+		final boolean                   ignoreCase;
+		final Normalizer.Form           form;
+		/** Code points of the same case folding, for those in texts. */
+		final Map<Integer, List<Integer>> cases     = new HashMap<> ();
+		/** Code points by their normal form, case folded if ignoring case, other than themselves. */
+		final Map<String, List<Integer>>  normals   = new HashMap<> ();
+		/** Longest normal form in code points. */
+		int                             longest     = 1;
+
+		Ways (final List<String> texts, final boolean ignoreCase, final Normalizer.Form form) {
+			this.ignoreCase = ignoreCase;
+			this.form       = form;
+			for (String text : texts) {
+				this.texts.add ((form != null ? Normalizer.normalize (text, form) : text).codePoints ().toArray ());
+			}
+			if (ignoreCase) {
+				for (int[] text : this.texts) {
+					for (int cp : text) {
+						cases.put (fold (cp), new ArrayList<> ());
+					}
+				}
+			}
+			if (! ignoreCase && form == null) {
+				return;
+			}
+			for (int cp = 0 ; cp <= Character.MAX_CODE_POINT ; cp++) {
+				if (Character.getType (cp) == Character.UNASSIGNED || Character.getType (cp) == Character.SURROGATE) {
+					continue;
+				}
+				var same = cases.get (fold (cp));
+				if (same != null) {
+					same.add (cp);
+				}
+				if (form != null) {
+					var s = new String (Character.toChars (cp));
+					var normal = Normalizer.normalize (s, form);
+					if (! normal.equals (s)) {
+						normals.computeIfAbsent (fold (normal), k -> new ArrayList<> ()).add (cp);
+						longest = Math.max (longest, normal.codePointCount (0, normal.length ()));
+					}
+				}
+			}
 		}
-		for (int i = start, j = 0 ; j < what.length ; i++, j++) {
-			if (content[i] != what[j]) {
-				return false;
+
+		/** @return upper then lower case of the code point, if ignoring case. */
+		private int fold (final int cp) {
+			return ignoreCase ? Character.toLowerCase (Character.toUpperCase (cp)) : cp;
+		}
+
+		private String fold (final String s) {
+			var folded = new StringBuilder ();
+			s.codePoints ().forEach (cp -> folded.appendCodePoint (fold (cp)));
+			return folded.toString ();
+		}
+
+		/**
+		 * @return for each position of the text: bytes of each way from it in the character set,
+		 * led by how many positions it goes on after the next one; or empty if the text is.
+		 */
+		List<List<byte[]>> of (final int w, final Charset charset) {
+			var text = texts.get (w);
+			if (! ignoreCase && form == null) {
+				// one way: all bytes of the text, as from a single position
+				var bytes = getBytes (new String (text, 0, text.length), charset);
+				return bytes.length == 0 ? List.of () : List.of (List.of (way (0, bytes)));
 			}
+
+			var ways = new ArrayList<List<byte[]>> ();
+			for (int i = 0 ; i < text.length ; i++) {
+				var alternatives = new LinkedHashSet<String> ();
+				for (int cp : ignoreCase ? cases.getOrDefault (fold (text[i]), List.of (text[i])) : List.of (text[i])) {
+					var s = new String (Character.toChars (cp));
+					alternatives.add (s);
+					if (form != null) {
+						alternatives.add (Normalizer.normalize (s, Normalizer.Form.NFD));
+					}
+				}
+				var ways1 = new ArrayList<byte[]> ();
+				for (String s : alternatives) {
+					var bytes = encode (s, charset);
+					if (bytes != null) {
+						ways1.add (way (0, bytes));
+					}
+				}
+				// code points of which the normal form begins here
+				for (int n = 1 ; form != null && n <= longest && i + n <= text.length ; n++) {
+					for (int cp : normals.getOrDefault (fold (new String (text, i, n)), List.of ())) {
+						var bytes = encode (new String (Character.toChars (cp)), charset);
+						if (bytes != null) {
+							ways1.add (way (n - 1, bytes));
+						}
+					}
+				}
+				ways.add (ways1);
+			}
+			return ways;
+		}
+
+		/** @return bytes led by how many positions they go on after the next one. */
+		static byte[] way (final int skip, final byte[] bytes) {
+			var way = new byte [bytes.length + 1];
+			way[0] = (byte) skip;
+			System.arraycopy (bytes, 0, way, 1, bytes.length);
+			return way;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return number of linefeeds in content from start to end, not overlapping. */
+	static int countLines (final byte[] content, int start, final int end, final byte[] linefeed) {
+		if (linefeed.length > 1) {
+			int lines = 0;
+			while ((start = Searcher.indexOf (content, start, end, linefeed, 0)) >= 0) {
+				start += linefeed.length;
+				lines++;
+			}
+			return lines;
+		}
+
+		// 8 bytes at a time: a byte equal to the linefeed leaves its high bit clear
+		long pattern = Searcher.broadcast (linefeed[0]);
+		int lines = 0;
+		for (; start + Long.BYTES <= end ; start += Long.BYTES) {
+			lines += Long.bitCount (Searcher.zeroBytes ((long) Searcher.LONGS.get (content, start) ^ pattern));
+		}
+		for (; start < end ; start++) {
+			lines += content[start] == linefeed[0] ? 1 : 0;
+		}
+		return lines;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Find a byte pattern in a byte array.
+	 * Patterns shorter than 16 bytes are found by scanning 8 bytes at a time (SWAR) for their rarest byte,
+	 * guessed from typical text, then checking the rest.
+	 * Longer ones by Boyer-Moore-Horspool, skipping ahead by the last 2 bytes in the window
+	 * rather than the last one, which is too often 0 in UTF-16 or a common letter.
+	 */
+	static final class Searcher {
+		static final VarHandle  LONGS    = MethodHandles.byteArrayViewVarHandle (long[].class, ByteOrder.LITTLE_ENDIAN);
+		static final long       LOW_7    = 0x7F7F7F7F7F7F7F7FL;
+		static final long       HIGH_1   = 0x8080808080808080L;
+		static final int        HORSPOOL = 16;
+
+		final byte[]    what;
+		/** Position in the pattern of the byte to scan for. */
+		final int       guard;
+		/** Shift by the last 2 bytes in the window, 0 if they end the pattern. */
+		final char[]    shifts;
+		/** Shift after checking a window ending as the pattern. */
+		final int       shift;
+
+		Searcher (final byte[] what) {
+			if (what.length == 0) {
+				throw new IllegalArgumentException ("Nothing to search.");
+			}
+			this.what = what;
+			int m = what.length, last = m - 1;
+			if (m >= HORSPOOL) {
+				shifts = new char [1 << 16];
+				Arrays.fill (shifts, (char) Math.min (last, Character.MAX_VALUE));
+				int shift = last;
+				for (int i = 0 ; i < last ; i++) {
+					int s = last - 1 - i;
+					shifts[bigram (what, i)] = (char) Math.min (s, Character.MAX_VALUE);
+					if (s > 0 && bigram (what, i) == bigram (what, last - 1)) {
+						shift = s;
+					}
+				}
+				this.shift = shift;
+				this.guard = 0;
+			} else {
+				int guard = 0;
+				for (int i = 1 ; i < m ; i++) {
+					if (rarity (what[i]) > rarity (what[guard])) {
+						guard = i;
+					}
+				}
+				this.shifts = null;
+				this.shift  = 1;
+				this.guard  = guard;
+			}
+		}
+
+		/** @return how rare the byte is in text: 0 for spaces, lowercase letters and 0 of UTF-16, up to 3. */
+		private static int rarity (final byte b) {
+			int c = b & 0xFF;
+			if (c == 0 || c == ' ' || c >= 'a' && c <= 'z' || c == '\n' || c == '\r' || c == '\t') {
+				return 0;
+			} else if (c >= '0' && c <= '9' || c >= 0x80 && c <= 0xBF || c >= 0xE4 && c <= 0xE9) {
+				// digits, UTF-8 continuation bytes and leading bytes of common CJK characters
+				return 1;
+			} else if (c < 0x80) {
+				return 2;
+			}
+			return 3;
+		}
+
+		private static int bigram (final byte[] b, final int i) {
+			return (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+		}
+
+		int length () {
+			return what.length;
+		}
+
+		/** @return offset of the first match in content from start to end, or -1 if none. */
+		int indexOf (final byte[] content, final int start, final int end) {
+			return shifts != null ? horspool (content, start, end) : indexOf (content, start, end, what, guard);
+		}
+
+		private int horspool (final byte[] content, final int start, final int end) {
+			final int last = what.length - 1;
+			for (int i = start ; i + last < end ;) {
+				int s = shifts[bigram (content, i + last - 1)];
+				if (s > 0) {
+					i += s;
+				} else if (Arrays.equals (content, i, i + last - 1, what, 0, last - 1)) {
+					return i;
+				} else {
+					i += shift;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Find a short pattern by scanning for one of its bytes.
+		 * @param guard position in the pattern of the byte to scan for
+		 * @return offset of the first match, or -1 if none.
+		 */
+		static int indexOf (final byte[] content, final int start, final int end, final byte[] what, final int guard) {
+			final int last = end - what.length + guard;
+			final byte b = what[guard];
+			final long pattern = broadcast (b);
+			int i = start + guard;
+			while (i <= last) {
+				// skip 8 bytes at a time until one of them is the byte
+				if (i + Long.BYTES <= end) {
+					long found = zeroBytes ((long) LONGS.get (content, i) ^ pattern);
+					if (found == 0) {
+						i += Long.BYTES;
+						continue;
+					}
+					i += Long.numberOfTrailingZeros (found) >>> 3;
+				} else if (content[i] != b) {
+					i++;
+					continue;
+				}
+				if (i > last) {
+					break;
+				} else if (Arrays.equals (content, i - guard, i - guard + what.length, what, 0, what.length)) {
+					return i - guard;
+				}
+				i++;
+			}
+			return -1;
+		}
+
+		/** @return the byte repeated 8 times. */
+		static long broadcast (final byte b) {
+			return (b & 0xFFL) * 0x0101010101010101L;
+		}
+
+		/** @return the high bit set in each byte of x which is zero, and nowhere else. */
+		static long zeroBytes (final long x) {
+			return ~(((x & LOW_7) + LOW_7) | x) & HIGH_1;
 		}
-		return true;
 	}
 
 }
@@ -6,6 +6,10 @@ if defined JAVA_HOME (
 ) else (
 	set JAVA=java
 )
+if not "%~1"=="" (
+	%JAVA% -cp lib\commons-io-2.6.jar FindCharsetFiles.java %*
+	exit /b
+)
 :forever
 %JAVA% -cp lib\commons-io-2.6.jar FindCharsetFiles.java %*
 echo;
@@ -1 +1 @@
-java -cp lib/commons-io-2.6.jar FindCharsetFiles.java $*
+java -cp lib/commons-io-2.6.jar FindCharsetFiles.java "$@"